@@ -0,0 +1,456 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Emits batched {@link Event}s for all changes of a {@link SharedFirebasePreferences}: one event per
+ * {@link SharedFirebasePreferences.Editor#apply()} or {@link SharedFirebasePreferences.Editor#commit()},
+ * per applied pull or sync and per reload of changes made by another process. Each
+ * {@link Subscription} only receives the keys accepted by its {@link KeyFilter}. Events are
+ * conflated: while a event waits for delivery, further events are merged into it, so a slow
+ * subscriber only receives the latest state instead of a growing backlog.
+ *
+ * @see SharedFirebasePreferences#observe(KeyFilter, SharedFirebasePreferences.OnPreferencesChangedListener)
+ */
+public class ChangeStream {
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The {@link SharedFirebasePreferences} emitting the events
+     */
+    private final SharedFirebasePreferences mPreferences;
+
+    /**
+     * The subscriptions
+     */
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * The sync version, incremented for each applied change not made locally
+     */
+    private long mSyncVersion;
+
+    /**
+     * The {@link Origin} of the last change of each key
+     */
+    private final Map<String, Origin> mOrigins = new HashMap<>();
+
+    /**
+     * Creates a new instance
+     *
+     * @param preferences the {@link SharedFirebasePreferences} emitting the events
+     */
+    public ChangeStream(SharedFirebasePreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Returns a {@link KeyFilter} accepting all keys
+     *
+     * @return the {@link KeyFilter}
+     */
+    public static KeyFilter allKeys() {
+        return new KeyFilter() {
+            @Override
+            public boolean accept(String key) {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link KeyFilter} accepting the given keys
+     *
+     * @param keys the keys
+     * @return the {@link KeyFilter}
+     */
+    public static KeyFilter keys(String... keys) {
+        final Set<String> set = new HashSet<>(Arrays.asList(keys));
+        return new KeyFilter() {
+            @Override
+            public boolean accept(String key) {
+                return set.contains(key);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link KeyFilter} accepting all keys starting with the given prefix
+     *
+     * @param prefix the prefix
+     * @return the {@link KeyFilter}
+     */
+    public static KeyFilter prefix(final String prefix) {
+        return new KeyFilter() {
+            @Override
+            public boolean accept(String key) {
+                return key.startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * Checks whether the given values are equal. Numbers are compared by value, so a local
+     * {@link Integer} equals the {@link Long} returned by Firebase and a local {@link Float} equals
+     * the {@link Double} returned by Firebase.
+     *
+     * @param a the first value, may be null
+     * @param b the second value, may be null
+     * @return true if both values are equal
+     */
+    static boolean isSameValue(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            Number n1 = (Number) a;
+            Number n2 = (Number) b;
+            if (isIntegral(n1) && isIntegral(n2)) {
+                return n1.longValue() == n2.longValue();
+            }
+            return Double.compare(n1.doubleValue(), n2.doubleValue()) == 0;
+        }
+
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Checks whether the given number is integral
+     *
+     * @param n the number
+     * @return true if the number is a {@link Integer}, {@link Long}, {@link Short} or {@link Byte}
+     */
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    /**
+     * Subscribes to the events
+     *
+     * @param filter   the {@link KeyFilter}
+     * @param listener the {@link SharedFirebasePreferences.OnPreferencesChangedListener}
+     * @param handler  the {@link Handler} on which the events are delivered
+     * @return the {@link Subscription}
+     */
+    public Subscription subscribe(@NonNull KeyFilter filter, @NonNull SharedFirebasePreferences.OnPreferencesChangedListener listener, @NonNull Handler handler) {
+        Subscription s = new Subscription(filter, listener, handler);
+        mSubscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Subscribes to the events, the events are delivered on the main thread
+     *
+     * @param filter   the {@link KeyFilter}
+     * @param listener the {@link SharedFirebasePreferences.OnPreferencesChangedListener}
+     * @return the {@link Subscription}
+     */
+    public Subscription subscribe(@NonNull KeyFilter filter, @NonNull SharedFirebasePreferences.OnPreferencesChangedListener listener) {
+        return subscribe(filter, listener, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Emits a event for the given changed keys
+     *
+     * @param keys   the changed keys
+     * @param origin the {@link Origin} of the change
+     */
+    public void emit(Collection<String> keys, Origin origin) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        long version;
+        synchronized (this) {
+            if (origin != Origin.LOCAL) {
+                mSyncVersion++;
+            }
+            version = mSyncVersion;
+            for (String k : keys) {
+                mOrigins.put(k, origin);
+            }
+        }
+
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+
+        Set<String> copy = Collections.unmodifiableSet(new HashSet<>(keys));
+        for (Subscription s : mSubscriptions) {
+            s.offer(copy, origin, version);
+        }
+    }
+
+    /**
+     * Returns all keys whose last change had the given {@link Origin}
+     *
+     * @param origin the {@link Origin}
+     * @return the keys
+     */
+    public synchronized Set<String> getKeysChangedBy(Origin origin) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Origin> e : mOrigins.entrySet()) {
+            if (e.getValue() == origin) {
+                keys.add(e.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the current sync version
+     *
+     * @return the sync version
+     */
+    public synchronized long getSyncVersion() {
+        return mSyncVersion;
+    }
+
+    /**
+     * The origins of changes
+     */
+    public enum Origin {
+
+        /**
+         * Changed with a {@link SharedFirebasePreferences.Editor} in this process
+         */
+        LOCAL,
+
+        /**
+         * Changed by a pull or while kept in sync
+         */
+        SYNC,
+
+        /**
+         * Changed by another process in multi process mode
+         */
+        PROCESS
+
+    }
+
+    /**
+     * Filters the keys delivered to a {@link Subscription}
+     */
+    public interface KeyFilter {
+
+        /**
+         * Checks whether the given key is accepted
+         *
+         * @param key the key
+         * @return true if changes of the key should be delivered
+         */
+        boolean accept(String key);
+
+    }
+
+    /**
+     * A batch of changed keys
+     */
+    public static class Event {
+
+        /**
+         * The changed keys
+         */
+        private final Set<String> mKeys;
+
+        /**
+         * The origins of the changes
+         */
+        private final Set<Origin> mOrigins;
+
+        /**
+         * The sync version after the changes
+         */
+        private final long mSyncVersion;
+
+        /**
+         * Creates a new instance
+         *
+         * @param keys        the changed keys
+         * @param origins     the origins of the changes
+         * @param syncVersion the sync version after the changes
+         */
+        private Event(Set<String> keys, Set<Origin> origins, long syncVersion) {
+            mKeys = Collections.unmodifiableSet(keys);
+            mOrigins = Collections.unmodifiableSet(origins);
+            mSyncVersion = syncVersion;
+        }
+
+        /**
+         * Returns the changed keys
+         *
+         * @return the changed keys
+         */
+        public Set<String> getKeys() {
+            return mKeys;
+        }
+
+        /**
+         * Returns the origins of the changes, more than one if multiple events were conflated
+         *
+         * @return the origins
+         */
+        public Set<Origin> getOrigins() {
+            return mOrigins;
+        }
+
+        /**
+         * Checks whether any of the changes has the given origin
+         *
+         * @param origin the {@link Origin}
+         * @return true if any change has the given origin
+         */
+        public boolean isFrom(Origin origin) {
+            return mOrigins.contains(origin);
+        }
+
+        /**
+         * Returns the sync version after the changes, the version is incremented for each applied
+         * change not made locally
+         *
+         * @return the sync version
+         */
+        public long getSyncVersion() {
+            return mSyncVersion;
+        }
+    }
+
+    /**
+     * A subscription to the events, conflates events waiting for delivery
+     */
+    public class Subscription implements Runnable {
+
+        /**
+         * The {@link KeyFilter}
+         */
+        private final KeyFilter mFilter;
+
+        /**
+         * The listener
+         */
+        private final SharedFirebasePreferences.OnPreferencesChangedListener mListener;
+
+        /**
+         * The {@link Handler} on which events are delivered
+         */
+        private final Handler mHandler;
+
+        /**
+         * The keys waiting for delivery, null if nothing is waiting
+         */
+        private Set<String> mPendingKeys;
+
+        /**
+         * The origins waiting for delivery
+         */
+        private Set<Origin> mPendingOrigins;
+
+        /**
+         * The latest sync version waiting for delivery
+         */
+        private long mPendingVersion;
+
+        /**
+         * Whether the subscription was cancelled
+         */
+        private volatile boolean mCancelled;
+
+        /**
+         * Creates a new instance
+         *
+         * @param filter   the {@link KeyFilter}
+         * @param listener the listener
+         * @param handler  the {@link Handler} on which events are delivered
+         */
+        private Subscription(KeyFilter filter, SharedFirebasePreferences.OnPreferencesChangedListener listener, Handler handler) {
+            mFilter = filter;
+            mListener = listener;
+            mHandler = handler;
+        }
+
+        /**
+         * Offers the given changes, merges them with the changes waiting for delivery
+         *
+         * @param keys    the changed keys
+         * @param origin  the {@link Origin}
+         * @param version the sync version
+         */
+        private void offer(Set<String> keys, Origin origin, long version) {
+            Set<String> accepted = new HashSet<>();
+            for (String k : keys) {
+                if (mFilter.accept(k)) {
+                    accepted.add(k);
+                }
+            }
+
+            if (accepted.isEmpty()) {
+                return;
+            }
+
+            boolean post;
+            synchronized (this) {
+                post = mPendingKeys == null;
+                if (post) {
+                    mPendingKeys = accepted;
+                    mPendingOrigins = EnumSet.of(origin);
+                } else {
+                    mPendingKeys.addAll(accepted);
+                    mPendingOrigins.add(origin);
+                }
+                mPendingVersion = Math.max(mPendingVersion, version);
+            }
+
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            synchronized (this) {
+                if (mPendingKeys == null) {
+                    return;
+                }
+
+                event = new Event(mPendingKeys, mPendingOrigins, mPendingVersion);
+                mPendingKeys = null;
+                mPendingOrigins = null;
+            }
+
+            if (mCancelled) {
+                return;
+            }
+
+            try {
+                mListener.onPreferencesChanged(mPreferences, event);
+            } catch (Exception e) {
+                Log.e(TAG, "Error while dispatching onPreferencesChanged() event", e);
+            }
+        }
+
+        /**
+         * Cancels the subscription, no further events are delivered
+         */
+        public void unsubscribe() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+            mHandler.removeCallbacks(this);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.database.DatabaseReference;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A {@link SharedFirebasePreferences} used in all processes except the main process in multi
+ * process mode. It does not connect to Firebase, all values are read from and written to the main
+ * process through {@link SharedFirebasePreferencesProvider}, which also performs all pulls and
+ * pushes. Methods which need the connection to Firebase, e.g. {@link #getPushScheduler()}, throw a
+ * {@link UnsupportedOperationException}. Keys must be omitted and encrypted in the main process,
+ * {@link #omitKeys(String...)} and {@link #encryptKeys(SecretKey, String...)} throw as well so
+ * values are never pushed unprotected because the call was only made in another process.
+ *
+ * @see SharedFirebasePreferences#setMultiProcessEnabled(boolean)
+ */
+public class MultiProcessSharedFirebasePreferences extends SharedFirebasePreferences {
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The local store
+     */
+    private final MultiProcessSharedPreferences mStore;
+
+    /**
+     * The {@link Handler} on which results of the main process are received
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The token identifying this process to the main process, used to end the sync request when
+     * this process dies
+     */
+    private final Binder mSyncToken = new Binder();
+
+    /**
+     * Creates a new instance
+     *
+     * @param con  a {@link Context}
+     * @param name the name of the preferences
+     */
+    protected MultiProcessSharedFirebasePreferences(Context con, String name) {
+        this(new MultiProcessSharedPreferences(con, name));
+    }
+
+    /**
+     * Creates a new instance
+     *
+     * @param store the local store
+     */
+    private MultiProcessSharedFirebasePreferences(MultiProcessSharedPreferences store) {
+        super(store, null);
+        mStore = store;
+        mStore.setOnReloadListener(new MultiProcessSharedPreferences.OnReloadListener() {
+            @Override
+            public void onReloaded(Set<String> keys, Set<String> synced) {
+                // Changes pulled by the main process keep their origin
+                Set<String> process = new HashSet<>(keys);
+                process.removeAll(synced);
+                getChangeStream().emit(process, ChangeStream.Origin.PROCESS);
+                getChangeStream().emit(synced, ChangeStream.Origin.SYNC);
+            }
+        });
+    }
+
+    @Override
+    public PullTask pull() {
+        final PullTask task = new PullTask(this, false);
+        Bundle extras = new Bundle();
+        extras.putParcelable(SharedFirebasePreferencesProvider.EXTRA_RECEIVER, new ResultReceiver(mHandler) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == SharedFirebasePreferencesProvider.RESULT_SUCCESS) {
+                    // Make sure the pulled values are visible before informing the listeners
+                    mStore.reload();
+                    task.dispatchFetchSucceeded();
+                } else {
+                    task.dispatchFetchFailed(new Exception(resultData.getString(SharedFirebasePreferencesProvider.EXTRA_ERROR)));
+                }
+            }
+        });
+        mStore.call(SharedFirebasePreferencesProvider.METHOD_PULL, extras);
+        return task;
+    }
+
+    @Override
+    public Task<Void> push() {
+        final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+        Bundle extras = new Bundle();
+        extras.putParcelable(SharedFirebasePreferencesProvider.EXTRA_RECEIVER, new ResultReceiver(mHandler) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == SharedFirebasePreferencesProvider.RESULT_SUCCESS) {
+                    source.setResult(null);
+                } else {
+                    source.setException(new Exception(resultData.getString(SharedFirebasePreferencesProvider.EXTRA_ERROR)));
+                }
+            }
+        });
+        mStore.call(SharedFirebasePreferencesProvider.METHOD_PUSH, extras);
+        return source.getTask();
+    }
+
+    @Override
+    public void keepSynced(boolean b) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(SharedFirebasePreferencesProvider.EXTRA_SYNCED, b);
+        extras.putParcelable(SharedFirebasePreferencesProvider.EXTRA_TOKEN, new SharedFirebasePreferencesProvider.SyncToken(mSyncToken));
+        mStore.call(SharedFirebasePreferencesProvider.METHOD_KEEP_SYNCED, extras);
+    }
+
+    /**
+     * Not supported, keys must be omitted in the main process
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void omitKeys(String... keys) {
+        throw new UnsupportedOperationException("Keys must be omitted in the main process in multi process mode");
+    }
+
+    /**
+     * Not supported, keys must be encrypted in the main process
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void encryptKeys(SecretKey secretKey, String... keys) throws GeneralSecurityException {
+        throw new UnsupportedOperationException("Keys must be encrypted in the main process in multi process mode");
+    }
+
+    /**
+     * Not supported, keys must be encrypted in the main process
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void encryptKeysWithPrefix(SecretKey secretKey, String prefix) throws GeneralSecurityException {
+        throw new UnsupportedOperationException("Keys must be encrypted in the main process in multi process mode");
+    }
+
+    /**
+     * Not supported, pushes are scheduled in the main process
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public PushScheduler getPushScheduler() {
+        throw new UnsupportedOperationException("The PushScheduler is only available in the main process in multi process mode");
+    }
+
+    /**
+     * Not supported, only the main process is connected to Firebase
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    protected DatabaseReference getRoot() {
+        throw new UnsupportedOperationException("Firebase is only accessed by the main process in multi process mode");
+    }
+
+    /**
+     * Sends the changed values to the main process, which commits and pushes them. If the main
+     * process can not be reached or fails to commit, the changes are dropped from the local values
+     * again, so {@link Editor#commit()} returns false and this process keeps showing the stored values.
+     *
+     * @param keys     the changed keys
+     * @param priority the {@link PushScheduler.Priority}
+     * @return true if the main process committed the changes
+     */
+    @Override
+    protected boolean schedulePush(Collection<String> keys, PushScheduler.Priority priority) {
+        // Send the changed values to the main process which pushes them
+        Map<String, Object> values = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        Map<String, ?> all = getAll();
+        for (String k : keys) {
+            if (all.containsKey(k)) {
+                values.put(k, all.get(k));
+            } else {
+                removed.add(k);
+            }
+        }
+
+        Bundle extras = new Bundle();
+        extras.putBundle(SharedFirebasePreferencesProvider.EXTRA_VALUES, SharedFirebasePreferencesProvider.toBundle(values));
+        extras.putStringArray(SharedFirebasePreferencesProvider.EXTRA_REMOVED, removed.toArray(new String[removed.size()]));
+        extras.putString(SharedFirebasePreferencesProvider.EXTRA_PRIORITY, priority.name());
+
+        boolean success = false;
+        try {
+            Bundle result = mStore.call(SharedFirebasePreferencesProvider.METHOD_EDIT, extras);
+            success = result != null && result.getBoolean(SharedFirebasePreferencesProvider.EXTRA_SUCCESS);
+            if (!success) {
+                Log.e(TAG, "Main process failed to commit changes");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error while sending changes to main process", e);
+        }
+
+        if (!success) {
+            // The changes never reached the main process, drop them instead of losing them silently with the next reload
+            try {
+                mStore.reload();
+            } catch (Exception e) {
+                Log.e(TAG, "Error while reloading values from main process", e);
+            }
+        }
+
+        return success;
+    }
+}
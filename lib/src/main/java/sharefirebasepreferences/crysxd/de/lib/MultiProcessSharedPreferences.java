@@ -0,0 +1,351 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link SharedPreferences} used as local cache by {@link MultiProcessSharedFirebasePreferences}.
+ * The values are loaded from the main process through {@link SharedFirebasePreferencesProvider}
+ * and reloaded whenever the main process announces a change. Changes made with {@link #edit()}
+ * are only applied locally, {@link MultiProcessSharedFirebasePreferences} sends them to the main
+ * process.
+ */
+public class MultiProcessSharedPreferences implements SharedPreferences {
+
+    /**
+     * The {@link Context}
+     */
+    private final Context mContext;
+
+    /**
+     * The name of the preferences
+     */
+    private final String mName;
+
+    /**
+     * The {@link Handler} used to inform listeners on the main thread
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The listeners
+     */
+    private final List<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The values, null until loaded
+     */
+    private Map<String, Object> mValues;
+
+    /**
+     * The listener informed about keys changed by a reload
+     */
+    private OnReloadListener mReloadListener;
+
+    /**
+     * Creates a new instance and starts observing the main process' changes
+     *
+     * @param con  a {@link Context}
+     * @param name the name of the preferences
+     */
+    public MultiProcessSharedPreferences(Context con, String name) {
+        mContext = con.getApplicationContext();
+        mName = name;
+        mContext.getContentResolver().registerContentObserver(getUri(), false, new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                reload();
+            }
+        });
+    }
+
+    /**
+     * Sets the listener informed about keys changed by another process
+     *
+     * @param listener the {@link OnReloadListener}
+     */
+    void setOnReloadListener(OnReloadListener listener) {
+        mReloadListener = listener;
+    }
+
+    /**
+     * Calls the given method of {@link SharedFirebasePreferencesProvider}
+     *
+     * @param method the method
+     * @param extras the extras
+     * @return the result
+     */
+    Bundle call(String method, Bundle extras) {
+        return mContext.getContentResolver().call(getUri(), method, mName, extras);
+    }
+
+    /**
+     * Returns the {@link Uri} of the preferences
+     *
+     * @return the {@link Uri}
+     */
+    private Uri getUri() {
+        return SharedFirebasePreferencesProvider.getUri(mContext, mName);
+    }
+
+    /**
+     * Reloads all values from the main process and informs the listeners about changed keys
+     */
+    public void reload() {
+        Bundle result = call(SharedFirebasePreferencesProvider.METHOD_GET_ALL, null);
+        Bundle b = result == null ? null : result.getBundle(SharedFirebasePreferencesProvider.EXTRA_VALUES);
+        Map<String, Object> values = new HashMap<>();
+        if (b != null) {
+            for (String k : b.keySet()) {
+                Object v = b.get(k);
+                values.put(k, v instanceof List ? new HashSet<>((List<?>) v) : v);
+            }
+        }
+
+        Set<String> changed = new HashSet<>();
+        synchronized (this) {
+            if (mValues != null) {
+                for (Map.Entry<String, Object> e : values.entrySet()) {
+                    if (!e.getValue().equals(mValues.get(e.getKey()))) {
+                        changed.add(e.getKey());
+                    }
+                }
+                for (String k : mValues.keySet()) {
+                    if (!values.containsKey(k)) {
+                        changed.add(k);
+                    }
+                }
+            }
+            mValues = values;
+        }
+
+        dispatchChanged(changed);
+        if (mReloadListener != null && !changed.isEmpty()) {
+            Set<String> synced = new HashSet<>(changed);
+            String[] syncedKeys = result == null ? null : result.getStringArray(SharedFirebasePreferencesProvider.EXTRA_SYNCED_KEYS);
+            synced.retainAll(syncedKeys == null ? new HashSet<String>() : Arrays.asList(syncedKeys));
+            mReloadListener.onReloaded(changed, synced);
+        }
+    }
+
+    /**
+     * Returns the values, loads them if not loaded yet
+     *
+     * @return the values
+     */
+    private synchronized Map<String, Object> getValues() {
+        if (mValues == null) {
+            reload();
+        }
+
+        return mValues;
+    }
+
+    /**
+     * Informs the listeners about the changed keys on the main thread
+     *
+     * @param keys the changed keys
+     */
+    private void dispatchChanged(final Set<String> keys) {
+        if (keys.isEmpty() || mListeners.isEmpty()) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String k : keys) {
+                    for (OnSharedPreferenceChangeListener l : mListeners) {
+                        l.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, k);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(getValues());
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(String s, @Nullable String s1) {
+        Object v = getValues().get(s);
+        return v != null ? (String) v : s1;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(String s, @Nullable Set<String> set) {
+        //noinspection unchecked
+        Set<String> v = (Set<String>) getValues().get(s);
+        return v != null ? v : set;
+    }
+
+    @Override
+    public synchronized int getInt(String s, int i) {
+        Object v = getValues().get(s);
+        return v != null ? (Integer) v : i;
+    }
+
+    @Override
+    public synchronized long getLong(String s, long l) {
+        Object v = getValues().get(s);
+        return v != null ? (Long) v : l;
+    }
+
+    @Override
+    public synchronized float getFloat(String s, float v) {
+        Object value = getValues().get(s);
+        return value != null ? (Float) value : v;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String s, boolean b) {
+        Object v = getValues().get(s);
+        return v != null ? (Boolean) v : b;
+    }
+
+    @Override
+    public synchronized boolean contains(String s) {
+        return getValues().containsKey(s);
+    }
+
+    @Override
+    public SharedPreferences.Editor edit() {
+        return new Editor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        mListeners.add(onSharedPreferenceChangeListener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        mListeners.remove(onSharedPreferenceChangeListener);
+    }
+
+    /**
+     * A listener informed about keys changed by a reload
+     */
+    interface OnReloadListener {
+
+        /**
+         * Called after a reload changed keys
+         *
+         * @param keys   the changed keys
+         * @param synced the changed keys whose change was made by a pull or sync in the main process
+         */
+        void onReloaded(Set<String> keys, Set<String> synced);
+
+    }
+
+    /**
+     * A editor applying changes to the local values
+     */
+    private class Editor implements SharedPreferences.Editor {
+
+        /**
+         * The changed values, null values are removed
+         */
+        private final Map<String, Object> mChanges = new HashMap<>();
+
+        /**
+         * Whether all values should be removed first
+         */
+        private boolean mClear;
+
+        @Override
+        public SharedPreferences.Editor putString(String s, @Nullable String s1) {
+            mChanges.put(s, s1);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String s, @Nullable Set<String> set) {
+            mChanges.put(s, set == null ? null : new HashSet<>(set));
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(String s, int i) {
+            mChanges.put(s, i);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(String s, long l) {
+            mChanges.put(s, l);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(String s, float v) {
+            mChanges.put(s, v);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(String s, boolean b) {
+            mChanges.put(s, b);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(String s) {
+            mChanges.put(s, null);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            Set<String> changed = new HashSet<>();
+            synchronized (MultiProcessSharedPreferences.this) {
+                Map<String, Object> values = getValues();
+                if (mClear) {
+                    changed.addAll(values.keySet());
+                    values.clear();
+                }
+
+                for (Map.Entry<String, Object> e : mChanges.entrySet()) {
+                    if (e.getValue() == null) {
+                        values.remove(e.getKey());
+                    } else {
+                        values.put(e.getKey(), e.getValue());
+                    }
+                    changed.add(e.getKey());
+                }
+            }
+
+            dispatchChanged(changed);
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
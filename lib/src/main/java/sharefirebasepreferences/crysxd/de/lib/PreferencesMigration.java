@@ -0,0 +1,693 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.util.Xml;
+
+import com.google.android.gms.tasks.Tasks;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Migrates existing preferences to a {@link SharedFirebasePreferences} and exports them again.
+ * Sources are read as a stream and pushed in batches bounded by entry count and size, so memory
+ * stays bounded and no single push gets too large. The batches are pushed in the
+ * {@link PushScheduler.Priority#BACKGROUND} lane of the {@link PushScheduler}, so they never delay
+ * interactive changes or exceed the max number of outstanding pushes. The progress is persisted after each batch, a
+ * failed or interrupted migration resumes with the next batch when started again. The source must
+ * not be changed before a migration is resumed.
+ * <p>
+ * The JSON format is a single object mapping the keys to their values, string sets are arrays.
+ * Int values are written as object with the single key {@value #JSON_INT}, e.g. {@code {"int": 5}},
+ * so they are imported as int again. Plain numbers are imported as long, or as float if they
+ * contain a fraction or exponent. All other objects, e.g. sets copied from Firebase with one child
+ * per element, are rejected.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreferencesMigration {
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The name of the {@link SharedPreferences} storing the progress of migrations
+     */
+    private static final String PROGRESS_PREFERENCES = "shared_firebase_preferences_migration";
+
+    /**
+     * The key of the JSON object wrapping int values
+     */
+    private static final String JSON_INT = "int";
+
+    /**
+     * The {@link SharedFirebasePreferences} to migrate to
+     */
+    private final SharedFirebasePreferences mPreferences;
+
+    /**
+     * The {@link SharedPreferences} storing the progress
+     */
+    private final SharedPreferences mProgress;
+
+    /**
+     * The {@link Handler} used to dispatch events on the main thread
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The max number of entries in one batch
+     */
+    private int mBatchSize = 200;
+
+    /**
+     * The max estimated size of one batch in bytes
+     */
+    private long mMaxBatchBytes = 64 * 1024;
+
+    /**
+     * Creates a new instance
+     *
+     * @param con         a {@link Context}
+     * @param preferences the {@link SharedFirebasePreferences} to migrate to, must not belong to
+     *                    another process than the main process in multi process mode
+     */
+    public PreferencesMigration(Context con, SharedFirebasePreferences preferences) {
+        if (preferences instanceof MultiProcessSharedFirebasePreferences) {
+            throw new IllegalArgumentException("Migrations must run in the main process in multi process mode");
+        }
+
+        mPreferences = preferences;
+        mProgress = con.getApplicationContext().getSharedPreferences(PROGRESS_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Sets the max number of entries pushed in one batch
+     *
+     * @param size the max number of entries, at least 1
+     * @return this instance
+     */
+    public PreferencesMigration setBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+
+        mBatchSize = size;
+        return this;
+    }
+
+    /**
+     * Sets the max estimated size of one batch. A batch always contains at least one entry.
+     *
+     * @param bytes the max size in bytes
+     * @return this instance
+     */
+    public PreferencesMigration setMaxBatchBytes(long bytes) {
+        mMaxBatchBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Imports a existing local {@link SharedPreferences} file. The file is parsed as a stream
+     * instead of being loaded with {@link Context#getSharedPreferences(String, int)}.
+     *
+     * @param con      a {@link Context}
+     * @param name     the name of the local preferences
+     * @param listener the {@link OnMigrationProgressListener} informed on the main thread
+     */
+    public void importSharedPreferences(Context con, String name, @NonNull OnMigrationProgressListener listener) {
+        final File file = new File(new File(con.getApplicationInfo().dataDir, "shared_prefs"), name + ".xml");
+        start("prefs:" + name, listener, new SourceFactory() {
+            @Override
+            public EntryReader open() throws IOException {
+                return new XmlEntryReader(file);
+            }
+        });
+    }
+
+    /**
+     * Imports a JSON file created with {@link #exportJson(File)}
+     *
+     * @param file     the file to import
+     * @param listener the {@link OnMigrationProgressListener} informed on the main thread
+     */
+    public void importJson(final File file, @NonNull OnMigrationProgressListener listener) {
+        start("json:" + file.getAbsolutePath(), listener, new SourceFactory() {
+            @Override
+            public EntryReader open() throws IOException {
+                return new JsonEntryReader(file);
+            }
+        });
+    }
+
+    /**
+     * Exports the local values of the preferences to the given file
+     *
+     * @param file the file to write to
+     * @throws IOException if the file can not be written
+     */
+    public void exportJson(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            exportJson(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Exports the local values of the preferences to the given stream. Every entry is written
+     * directly to the stream, no intermediate representation of the whole file is created.
+     *
+     * @param out the {@link OutputStream} to write to, not closed by this method
+     * @throws IOException if the stream can not be written
+     */
+    public void exportJson(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        for (Map.Entry<String, ?> e : mPreferences.getAll().entrySet()) {
+            Object v = e.getValue();
+            json.name(e.getKey());
+            if (v instanceof String) {
+                json.value((String) v);
+            } else if (v instanceof Boolean) {
+                json.value((Boolean) v);
+            } else if (v instanceof Float) {
+                json.value((double) (Float) v);
+            } else if (v instanceof Integer) {
+                // Plain numbers are imported as long, keep the type so getInt() still works
+                json.beginObject().name(JSON_INT).value((long) (Integer) v).endObject();
+            } else if (v instanceof Number) {
+                json.value(((Number) v).longValue());
+            } else if (v instanceof Set) {
+                json.beginArray();
+                for (Object o : (Set<?>) v) {
+                    json.value(String.valueOf(o));
+                }
+                json.endArray();
+            } else {
+                json.nullValue();
+            }
+        }
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Discards the progress of the migration of the given local preferences, so the next import
+     * starts from the beginning
+     *
+     * @param name the name of the local preferences
+     */
+    public void resetSharedPreferencesProgress(String name) {
+        mProgress.edit().remove(getProgressKey("prefs:" + name)).apply();
+    }
+
+    /**
+     * Discards the progress of the migration of the given JSON file, so the next import starts
+     * from the beginning
+     *
+     * @param file the JSON file
+     */
+    public void resetJsonProgress(File file) {
+        mProgress.edit().remove(getProgressKey("json:" + file.getAbsolutePath())).apply();
+    }
+
+    /**
+     * Starts a migration on a background thread
+     *
+     * @param source   the id of the source
+     * @param listener the {@link OnMigrationProgressListener}
+     * @param factory  the {@link SourceFactory} to open the source
+     */
+    private void start(final String source, final OnMigrationProgressListener listener, final SourceFactory factory) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    migrate(source, listener, factory);
+                } catch (Exception e) {
+                    Log.e(TAG, "Migration of " + source + " failed", e);
+                    dispatchFailed(listener, e);
+                }
+            }
+        }, "SharedFirebasePrefsMigration").start();
+    }
+
+    /**
+     * Performs the migration, must not be called on the main thread
+     *
+     * @param source   the id of the source
+     * @param listener the {@link OnMigrationProgressListener}
+     * @param factory  the {@link SourceFactory} to open the source
+     * @throws Exception if the migration failed
+     */
+    private void migrate(String source, OnMigrationProgressListener listener, SourceFactory factory) throws Exception {
+        String progressKey = getProgressKey(source);
+        int migrated = mProgress.getInt(progressKey, 0);
+        long bytes = 0;
+
+        EntryReader reader = factory.open();
+        try {
+            // Skip all entries migrated before
+            for (int i = 0; i < migrated; i++) {
+                if (reader.next() == null) {
+                    break;
+                }
+            }
+
+            List<Entry> batch = new ArrayList<>();
+            long batchBytes = 0;
+            Entry entry;
+            do {
+                entry = reader.next();
+                if (entry != null) {
+                    batch.add(entry);
+                    batchBytes += entry.estimateSize();
+                }
+
+                boolean full = batch.size() >= mBatchSize || batchBytes >= mMaxBatchBytes;
+                if (!batch.isEmpty() && (full || entry == null)) {
+                    pushBatch(batch);
+                    migrated += batch.size();
+                    bytes += batchBytes;
+                    mProgress.edit().putInt(progressKey, migrated).commit();
+                    dispatchProgress(listener, migrated, bytes);
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            } while (entry != null);
+        } finally {
+            reader.close();
+        }
+
+        mProgress.edit().remove(progressKey).commit();
+        Log.i(TAG, "Migration of " + source + " to " + mPreferences.getRoot().toString() + " completed");
+        dispatchComplete(listener, migrated);
+    }
+
+    /**
+     * Writes the batch to the local cache and pushes it in the {@link PushScheduler.Priority#BACKGROUND}
+     * lane of the {@link PushScheduler}, blocks until the push is completed
+     *
+     * @param batch the entries to push
+     * @throws Exception if the push failed
+     */
+    private void pushBatch(List<Entry> batch) throws Exception {
+        // Write directly to the cache, the values are pushed below
+        SharedPreferences.Editor e = mPreferences.getCache().edit();
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : batch) {
+            entry.write(e);
+            keys.add(entry.key);
+        }
+        e.commit();
+        mPreferences.getChangeStream().emit(keys, ChangeStream.Origin.LOCAL);
+
+        try {
+            Tasks.await(mPreferences.getPushScheduler().scheduleBatch(keys));
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    /**
+     * Returns the key used to store the progress of the migration of the given source
+     *
+     * @param source the id of the source
+     * @return the key
+     */
+    private String getProgressKey(String source) {
+        return mPreferences.getRoot().toString() + "|" + source;
+    }
+
+    /**
+     * Dispatches {@link OnMigrationProgressListener#onMigrationProgress(int, long)} on the main thread
+     */
+    private void dispatchProgress(final OnMigrationProgressListener listener, final int migrated, final long bytes) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onMigrationProgress(migrated, bytes);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while dispatching onMigrationProgress() event", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatches {@link OnMigrationProgressListener#onMigrationComplete(int)} on the main thread
+     */
+    private void dispatchComplete(final OnMigrationProgressListener listener, final int migrated) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onMigrationComplete(migrated);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while dispatching onMigrationComplete() event", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatches {@link OnMigrationProgressListener#onMigrationFailed(Exception)} on the main thread
+     */
+    private void dispatchFailed(final OnMigrationProgressListener listener, final Exception ex) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onMigrationFailed(ex);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while dispatching onMigrationFailed() event", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * A listener to get notified about the progress of a migration
+     */
+    public interface OnMigrationProgressListener {
+
+        /**
+         * Called after each pushed batch
+         *
+         * @param migrated the total number of migrated entries, including entries migrated before
+         *                 the migration was resumed
+         * @param bytes    the estimated number of bytes pushed since the migration was (re-)started
+         */
+        void onMigrationProgress(int migrated, long bytes);
+
+        /**
+         * Called when all entries were migrated
+         *
+         * @param migrated the total number of migrated entries
+         */
+        void onMigrationComplete(int migrated);
+
+        /**
+         * Called when the migration failed. Start the migration again to resume it.
+         *
+         * @param e the occurred {@link Exception}
+         */
+        void onMigrationFailed(Exception e);
+
+    }
+
+    /**
+     * Opens a source of entries
+     */
+    private interface SourceFactory {
+
+        /**
+         * Opens the source
+         *
+         * @return the {@link EntryReader}
+         * @throws IOException if the source can not be opened
+         */
+        EntryReader open() throws IOException;
+
+    }
+
+    /**
+     * Reads the entries of a source one by one
+     */
+    private interface EntryReader extends Closeable {
+
+        /**
+         * Reads the next entry
+         *
+         * @return the entry or null if the end is reached
+         * @throws IOException if the source can not be read
+         */
+        Entry next() throws IOException;
+
+    }
+
+    /**
+     * A single preference
+     */
+    private static class Entry {
+
+        /**
+         * The key
+         */
+        private final String key;
+
+        /**
+         * The value, one of the types supported by {@link SharedPreferences}
+         */
+        private final Object value;
+
+        /**
+         * Creates a new instance
+         *
+         * @param key   the key
+         * @param value the value
+         */
+        private Entry(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Writes the entry to the given {@link SharedPreferences.Editor}
+         *
+         * @param e the {@link SharedPreferences.Editor}
+         */
+        private void write(SharedPreferences.Editor e) {
+            if (value instanceof String) {
+                e.putString(key, (String) value);
+            } else if (value instanceof Long) {
+                e.putLong(key, (Long) value);
+            } else if (value instanceof Integer) {
+                e.putInt(key, (Integer) value);
+            } else if (value instanceof Boolean) {
+                e.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Float) {
+                e.putFloat(key, (Float) value);
+            } else if (value instanceof Set) {
+                //noinspection unchecked
+                e.putStringSet(key, (Set<String>) value);
+            }
+        }
+
+        /**
+         * Estimates the size of the entry when pushed as JSON
+         *
+         * @return the estimated size in bytes
+         */
+        private long estimateSize() {
+            long size = key.length() + 4;
+            if (value instanceof Set) {
+                size += 2;
+                for (Object o : (Set<?>) value) {
+                    size += String.valueOf(o).length() + 3;
+                }
+            } else if (value instanceof String) {
+                size += ((String) value).length() + 2;
+            } else {
+                size += String.valueOf(value).length();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Reads the XML file of a local {@link SharedPreferences}
+     */
+    private static class XmlEntryReader implements EntryReader {
+
+        /**
+         * The reader for the file
+         */
+        private final BufferedReader mReader;
+
+        /**
+         * The parser
+         */
+        private final XmlPullParser mParser;
+
+        /**
+         * Creates a new instance
+         *
+         * @param file the file to read
+         * @throws IOException if the file can not be opened
+         */
+        private XmlEntryReader(File file) throws IOException {
+            mReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            mParser = Xml.newPullParser();
+            try {
+                mParser.setInput(mReader);
+            } catch (XmlPullParserException e) {
+                mReader.close();
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            try {
+                // Find the next value tag below <map>
+                int event;
+                while ((event = mParser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (event == XmlPullParser.START_TAG && mParser.getDepth() == 2) {
+                        return readEntry();
+                    }
+                }
+                return null;
+            } catch (XmlPullParserException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Reads the entry at the current start tag
+         *
+         * @return the entry
+         */
+        private Entry readEntry() throws IOException, XmlPullParserException {
+            String tag = mParser.getName();
+            String key = mParser.getAttributeValue(null, "name");
+            String value = mParser.getAttributeValue(null, "value");
+            switch (tag) {
+                case "string":
+                    return new Entry(key, mParser.nextText());
+                case "int":
+                    return new Entry(key, Integer.parseInt(value));
+                case "long":
+                    return new Entry(key, Long.parseLong(value));
+                case "float":
+                    return new Entry(key, Float.parseFloat(value));
+                case "boolean":
+                    return new Entry(key, Boolean.parseBoolean(value));
+                case "set":
+                    Set<String> set = new HashSet<>();
+                    int event;
+                    while ((event = mParser.next()) != XmlPullParser.END_TAG || mParser.getDepth() > 2) {
+                        if (event == XmlPullParser.START_TAG) {
+                            set.add(mParser.nextText());
+                        }
+                    }
+                    return new Entry(key, set);
+                default:
+                    throw new IOException("Unsupported tag <" + tag + "> for key " + key);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Reads a JSON file created by {@link #exportJson(OutputStream)}
+     */
+    private static class JsonEntryReader implements EntryReader {
+
+        /**
+         * The reader
+         */
+        private final JsonReader mReader;
+
+        /**
+         * Creates a new instance and reads up to the first entry
+         *
+         * @param file the file to read
+         * @throws IOException if the file can not be opened
+         */
+        private JsonEntryReader(File file) throws IOException {
+            mReader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")));
+            try {
+                mReader.beginObject();
+            } catch (IOException e) {
+                mReader.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            while (mReader.hasNext()) {
+                String key = mReader.nextName();
+                switch (mReader.peek()) {
+                    case STRING:
+                        return new Entry(key, mReader.nextString());
+                    case BOOLEAN:
+                        return new Entry(key, mReader.nextBoolean());
+                    case NUMBER:
+                        String n = mReader.nextString();
+                        if (n.contains(".") || n.contains("e") || n.contains("E")) {
+                            return new Entry(key, Float.parseFloat(n));
+                        }
+                        return new Entry(key, Long.parseLong(n));
+                    case BEGIN_ARRAY:
+                        Set<String> set = new HashSet<>();
+                        mReader.beginArray();
+                        while (mReader.hasNext()) {
+                            set.add(mReader.nextString());
+                        }
+                        mReader.endArray();
+                        return new Entry(key, set);
+                    case BEGIN_OBJECT:
+                        mReader.beginObject();
+                        if (!mReader.hasNext() || !JSON_INT.equals(mReader.nextName())) {
+                            throw new IOException("Unsupported object for key " + key + ", string sets must be arrays");
+                        }
+                        int i = mReader.nextInt();
+                        if (mReader.hasNext()) {
+                            throw new IOException("Unsupported object for key " + key + ", int values must only contain \"" + JSON_INT + "\"");
+                        }
+                        mReader.endObject();
+                        return new Entry(key, i);
+                    case NULL:
+                        // Nothing to migrate
+                        mReader.skipValue();
+                        break;
+                    default:
+                        throw new IOException("Unsupported value for key " + key + ", string sets must be arrays");
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Maintains the summary stored next to the preferences in Firebase. The keys are distributed over
+ * {@link #BUCKETS} buckets. {@link #INDEX_KEY} lists all keys ever pushed per bucket, removed keys
+ * stay listed so their removal reaches the other devices. {@link #SUMMARY_KEY} holds a random token
+ * per bucket which is replaced with every push touching the bucket. Index entries and tokens are
+ * written in the same update as the values, so a token always changes together with the remote data
+ * no matter which device pushed it. A pull compares the remote tokens with the tokens seen by the
+ * last pull and only fetches the buckets which changed.
+ */
+public class PreferencesSummary {
+
+    /**
+     * The reserved key of the node holding the tokens of the buckets
+     */
+    public static final String SUMMARY_KEY = "__summary";
+
+    /**
+     * The reserved key of the node holding the keys of the buckets
+     */
+    public static final String INDEX_KEY = "__index";
+
+    /**
+     * The number of buckets
+     */
+    public static final int BUCKETS = 16;
+
+    /**
+     * The tokens seen by the last pull mapped by bucket, null if unknown
+     */
+    private final String[] mSynced = new String[BUCKETS];
+
+    /**
+     * Checks whether the given key is reserved for the summary
+     *
+     * @param key the key
+     * @return true if the key is reserved and no preference
+     */
+    public static boolean isReservedKey(String key) {
+        return SUMMARY_KEY.equals(key) || INDEX_KEY.equals(key);
+    }
+
+    /**
+     * Returns the bucket of the given key. {@link String#hashCode()} is specified and therefore
+     * equal on all devices.
+     *
+     * @param key the key
+     * @return the bucket
+     */
+    public static int getBucket(String key) {
+        return (key.hashCode() & 0x7fffffff) % BUCKETS;
+    }
+
+    /**
+     * Adds the index entries of the given keys and a new token for each bucket touched by them to
+     * the given values. Only the entries of the given keys are written, the rest of the index is
+     * not touched.
+     *
+     * @param values the values to push
+     * @param keys   the pushed keys
+     */
+    public static void addPushValues(Map<String, Object> values, Collection<String> keys) {
+        String token = null;
+        for (String k : keys) {
+            int bucket = getBucket(k);
+            values.put(INDEX_KEY + "/" + bucket + "/" + k, true);
+
+            String tokenPath = SUMMARY_KEY + "/" + bucket;
+            if (!values.containsKey(tokenPath)) {
+                token = token == null ? UUID.randomUUID().toString() : token;
+                values.put(tokenPath, token);
+            }
+        }
+    }
+
+    /**
+     * Returns the buckets whose remote token differs from the token seen by the last pull
+     *
+     * @param remote the remote tokens mapped by bucket, null for buckets never pushed
+     * @return the changed buckets
+     */
+    public synchronized List<Integer> getChangedBuckets(String[] remote) {
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            String synced = mSynced[i];
+            if (synced == null ? remote[i] != null : !synced.equals(remote[i])) {
+                changed.add(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the token of the given bucket seen by the last pull
+     *
+     * @param bucket the bucket
+     * @return the token or null if unknown
+     */
+    public synchronized String getSynced(int bucket) {
+        return mSynced[bucket];
+    }
+
+    /**
+     * Sets the token of the given bucket seen by a pull. Must only be called after the values of
+     * the bucket fetched after the token were applied.
+     *
+     * @param bucket the bucket
+     * @param token  the token or null if the bucket was never pushed
+     */
+    public synchronized void setSynced(int bucket, String token) {
+        mSynced[bucket] = token;
+    }
+}
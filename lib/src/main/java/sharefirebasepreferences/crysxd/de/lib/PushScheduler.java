@@ -0,0 +1,396 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Schedules the pushes of changes made with a {@link SharedFirebasePreferences.Editor}. Changes
+ * with {@link Priority#INTERACTIVE} are pushed at once, changes with {@link Priority#BACKGROUND}
+ * are batched and rate limited so they never delay interactive changes. The number of outstanding
+ * pushes per {@link SharedFirebasePreferences} is capped, one of them is always reserved for
+ * interactive changes. The keys of a failed push are scheduled again in their lane, all pushes
+ * are paused for a growing delay after each failure.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PushScheduler {
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The delay after the first failed push in milliseconds, doubled with each further failure
+     */
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    /**
+     * The max delay after failed pushes in milliseconds
+     */
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    /**
+     * The {@link SharedFirebasePreferences} being pushed
+     */
+    private final SharedFirebasePreferences mPreferences;
+
+    /**
+     * The {@link Handler} used to delay background pushes
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The keys of interactive changes waiting for a free push slot
+     */
+    private final Set<String> mInteractiveKeys = new LinkedHashSet<>();
+
+    /**
+     * The keys of background changes waiting to be pushed
+     */
+    private final Set<String> mBackgroundKeys = new LinkedHashSet<>();
+
+    /**
+     * The batches scheduled with {@link #scheduleBatch(Collection)} waiting to be pushed
+     */
+    private final List<Batch> mBatches = new ArrayList<>();
+
+    /**
+     * The {@link Runnable} pushing the keys waiting for the next background batch or a retry
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PushScheduler.this) {
+                mFlushScheduled = false;
+                dispatch();
+            }
+        }
+    };
+
+    /**
+     * The number of pushes which are not completed yet
+     */
+    private int mOutstandingPushes;
+
+    /**
+     * The max number of outstanding pushes
+     */
+    private int mMaxOutstandingPushes = 3;
+
+    /**
+     * The max number of keys pushed in one background batch
+     */
+    private int mBackgroundBatchSize = 50;
+
+    /**
+     * The min time between two background batches in milliseconds
+     */
+    private long mBackgroundInterval = 1000;
+
+    /**
+     * The time of the last background batch, see {@link SystemClock#uptimeMillis()}
+     */
+    private long mLastBackgroundPush;
+
+    /**
+     * Whether {@link #mFlush} is currently posted
+     */
+    private boolean mFlushScheduled;
+
+    /**
+     * The number of pushes which failed in a row
+     */
+    private int mFailures;
+
+    /**
+     * The time until which no push is started after a failure, see {@link SystemClock#uptimeMillis()}
+     */
+    private long mRetryTime;
+
+    /**
+     * Creates a new instance
+     *
+     * @param preferences the {@link SharedFirebasePreferences} being pushed
+     */
+    public PushScheduler(SharedFirebasePreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Sets the max number of outstanding pushes. One push is always reserved for interactive
+     * changes, background changes use the others.
+     *
+     * @param max the max number, at least 2
+     */
+    public synchronized void setMaxOutstandingPushes(int max) {
+        if (max < 2) {
+            throw new IllegalArgumentException("At least two outstanding pushes must be allowed, one is reserved for interactive changes");
+        }
+
+        mMaxOutstandingPushes = max;
+        dispatch();
+    }
+
+    /**
+     * Sets the max number of keys pushed in one background batch
+     *
+     * @param size the max number of keys, at least 1
+     */
+    public synchronized void setBackgroundBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+
+        mBackgroundBatchSize = size;
+    }
+
+    /**
+     * Sets the min time between two background batches
+     *
+     * @param millis the time in milliseconds
+     */
+    public synchronized void setBackgroundInterval(long millis) {
+        mBackgroundInterval = millis;
+    }
+
+    /**
+     * Schedules the push of the given keys. The current values are read when the push is started,
+     * so multiple changes of the same key waiting to be pushed are combined. Only the given keys
+     * are pushed, use {@link SharedFirebasePreferences#push()} or {@link PreferencesMigration} to
+     * push local preferences which existed before.
+     *
+     * @param keys     the changed keys
+     * @param priority the {@link Priority}
+     */
+    public synchronized void schedule(@NonNull Collection<String> keys, @NonNull Priority priority) {
+        if (priority == Priority.INTERACTIVE) {
+            // The latest values are pushed anyway, no need to push them again in background
+            mBackgroundKeys.removeAll(keys);
+            mInteractiveKeys.addAll(keys);
+        } else {
+            for (String k : keys) {
+                if (!mInteractiveKeys.contains(k)) {
+                    mBackgroundKeys.add(k);
+                }
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Schedules the push of the given keys as one batch in the {@link Priority#BACKGROUND} lane.
+     * Use this method for bulk writes which need to know when their keys were pushed, e.g.
+     * {@link PreferencesMigration}. The keys are pushed together and are not split by the
+     * background batch size. The keys of a failed batch are not scheduled again, the returned
+     * {@link Task} fails instead.
+     *
+     * @param keys the changed keys
+     * @return the {@link Task} completed when the batch was pushed
+     */
+    public synchronized Task<Void> scheduleBatch(@NonNull Collection<String> keys) {
+        Batch batch = new Batch(new ArrayList<>(keys));
+        mBatches.add(batch);
+        dispatch();
+        return batch.source.getTask();
+    }
+
+    /**
+     * Starts all pushes allowed right now. Must be called while holding the lock.
+     */
+    private void dispatch() {
+        // Wait after failed pushes instead of failing again and again
+        long now = SystemClock.uptimeMillis();
+        if (now < mRetryTime) {
+            if (!mInteractiveKeys.isEmpty() || !mBackgroundKeys.isEmpty() || !mBatches.isEmpty()) {
+                scheduleFlush(mRetryTime - now);
+            }
+            return;
+        }
+
+        // Interactive changes are pushed at once if a push slot is free
+        if (!mInteractiveKeys.isEmpty() && mOutstandingPushes < mMaxOutstandingPushes) {
+            List<String> keys = new ArrayList<>(mInteractiveKeys);
+            mInteractiveKeys.clear();
+            push(keys, Priority.INTERACTIVE, null);
+        }
+
+        // Background changes wait for interactive changes and leave one slot free for them
+        if ((mBackgroundKeys.isEmpty() && mBatches.isEmpty()) || !mInteractiveKeys.isEmpty()
+                || mOutstandingPushes >= mMaxOutstandingPushes - 1) {
+            return;
+        }
+
+        long wait = mLastBackgroundPush + mBackgroundInterval - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            mLastBackgroundPush = SystemClock.uptimeMillis();
+            wait = mBackgroundInterval;
+
+            // Scheduled batches go first, their keys are pushed with the batch
+            if (!mBatches.isEmpty()) {
+                Batch batch = mBatches.remove(0);
+                mBackgroundKeys.removeAll(batch.keys);
+                push(batch.keys, Priority.BACKGROUND, batch.source);
+            } else {
+                List<String> keys = new ArrayList<>();
+                Iterator<String> it = mBackgroundKeys.iterator();
+                while (it.hasNext() && keys.size() < mBackgroundBatchSize) {
+                    keys.add(it.next());
+                    it.remove();
+                }
+                push(keys, Priority.BACKGROUND, null);
+            }
+        }
+
+        if (!mBackgroundKeys.isEmpty() || !mBatches.isEmpty()) {
+            scheduleFlush(wait);
+        }
+    }
+
+    /**
+     * Posts {@link #mFlush} if not posted yet. Must be called while holding the lock.
+     *
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleFlush(long delay) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * Pushes the given keys. Must be called while holding the lock.
+     *
+     * @param keys     the keys to push
+     * @param priority the {@link Priority} of the keys
+     * @param source   the {@link TaskCompletionSource} of a scheduled batch or null
+     */
+    private void push(final List<String> keys, final Priority priority, final TaskCompletionSource<Void> source) {
+        SharedFirebasePreferences.PushTask task;
+        try {
+            task = new SharedFirebasePreferences.PushTask(mPreferences, keys);
+        } catch (RuntimeException e) {
+            // E.g. a encryption error, handle it like a failed push so the keys are not lost
+            Log.e(TAG, "Unable to start push of " + keys.size() + " keys", e);
+            if (source != null) {
+                source.setException(e);
+            }
+            mOutstandingPushes++;
+            onPushFailed(source == null ? keys : new ArrayList<String>(), priority);
+            return;
+        }
+
+        mOutstandingPushes++;
+        task.addOnSuccessListener(new OnSuccessListener<Void>() {
+            @Override
+            public void onSuccess(Void aVoid) {
+                Log.i(TAG, "Push of " + keys.size() + " keys to " + mPreferences.getRoot().toString() + " succeeded");
+                if (source != null) {
+                    source.setResult(null);
+                }
+                onPushSucceeded();
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                Log.e(TAG, "Push of " + keys.size() + " keys to " + mPreferences.getRoot().toString() + " failed", e);
+                if (source != null) {
+                    source.setException(e);
+                }
+                onPushFailed(source == null ? keys : new ArrayList<String>(), priority);
+            }
+        });
+    }
+
+    /**
+     * Called when a push succeeded, starts the pushes waiting for a free slot
+     */
+    private synchronized void onPushSucceeded() {
+        mOutstandingPushes--;
+        mFailures = 0;
+        dispatch();
+    }
+
+    /**
+     * Called when a push failed, schedules the keys again in their lane and delays the next push
+     *
+     * @param keys     the keys of the failed push
+     * @param priority the {@link Priority} of the keys
+     */
+    private synchronized void onPushFailed(List<String> keys, Priority priority) {
+        mOutstandingPushes--;
+        mFailures++;
+        mRetryTime = SystemClock.uptimeMillis() + Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(mFailures - 1, 20));
+
+        // Keys changed again in the meantime are already waiting in their new lane
+        for (String k : keys) {
+            if (priority == Priority.INTERACTIVE) {
+                mBackgroundKeys.remove(k);
+                mInteractiveKeys.add(k);
+            } else if (!mInteractiveKeys.contains(k)) {
+                mBackgroundKeys.add(k);
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * A batch scheduled with {@link #scheduleBatch(Collection)}
+     */
+    private static class Batch {
+
+        /**
+         * The keys
+         */
+        private final List<String> keys;
+
+        /**
+         * The {@link TaskCompletionSource} completed when the batch was pushed
+         */
+        private final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+
+        /**
+         * Creates a new instance
+         *
+         * @param keys the keys
+         */
+        private Batch(List<String> keys) {
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * The priorities of changes
+     */
+    public enum Priority {
+
+        /**
+         * Changes made by the user, e.g. in a {@link android.preference.PreferenceFragment}.
+         * Pushed at once.
+         */
+        INTERACTIVE,
+
+        /**
+         * Bulk changes not made by the user, e.g. migrations. Batched and rate limited.
+         */
+        BACKGROUND
+
+    }
+}
@@ -1,8 +1,10 @@
 package sharefirebasepreferences.crysxd.de.lib;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -11,6 +13,7 @@ import android.util.Log;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.database.DataSnapshot;
@@ -19,16 +22,21 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
+import javax.crypto.SecretKey;
+
 /**
  * A {@link SharedPreferences} implementation which syncs all data with firebase. Use {@link #getInstance(Context, String, int)}
  * to receive a instance
@@ -51,6 +59,11 @@ public class SharedFirebasePreferences implements SharedPreferences {
      */
     private static final String TAG = "SharedFirebasePrefs";
 
+    /**
+     * The name of the {@link SharedPreferences} storing the summary tokens seen by the last pulls
+     */
+    private static final String SUMMARY_PREFERENCES = "shared_firebase_preferences_summary";
+
     /**
      * The instances
      */
@@ -61,6 +74,16 @@ public class SharedFirebasePreferences implements SharedPreferences {
      */
     private static String sPathPattern = String.format(Locale.ENGLISH, "/shared_prefs/%s/%s", UID_PLACEHOLDER, NAME_PLACEHOLDER);
 
+    /**
+     * Whether the multi process mode is enabled
+     */
+    private static boolean sMultiProcess;
+
+    /**
+     * Whether pulls only fetch the buckets changed according to the {@link PreferencesSummary}
+     */
+    private static boolean sPartialPulls = true;
+
     /**
      * The wrapped {@link SharedPreferences}
      */
@@ -81,6 +104,52 @@ public class SharedFirebasePreferences implements SharedPreferences {
      */
     private SyncAdapter mSyncAdapter;
 
+    /**
+     * The {@link PushScheduler} used to push changes made with a {@link Editor}
+     */
+    private PushScheduler mPushScheduler;
+
+    /**
+     * The {@link ValueEncryption} applied to pushed and pulled values
+     */
+    private ValueEncryption mEncryption = new ValueEncryption();
+
+    /**
+     * The {@link ChangeStream} emitting batched change events
+     */
+    private ChangeStream mChangeStream;
+
+    /**
+     * The {@link PreferencesSummary} holding the tokens seen by the last pull
+     */
+    private final PreferencesSummary mSummary = new PreferencesSummary();
+
+    /**
+     * The {@link SharedPreferences} persisting the tokens of {@link #mSummary}, null if not persisted
+     */
+    private SharedPreferences mSummaryState;
+
+    /**
+     * The objects requesting to keep the preferences synced, e.g. this instance or other processes
+     */
+    private final Set<Object> mSyncRequests = new HashSet<>();
+
+    /**
+     * The string sets as confirmed by the last successful push or pull mapped by key. The sets are
+     * shared with the local cache, which never modifies a stored set.
+     */
+    private final Map<String, Set<String>> mSyncedSets = new HashMap<>();
+
+    /**
+     * The number of started pushes of each key which are not completed yet
+     */
+    private final Map<String, Integer> mPendingPushes = new HashMap<>();
+
+    /**
+     * The last started push of each key, identified by the map of sets pushed with it
+     */
+    private final Map<String, Map<String, Set<String>>> mLastPushes = new HashMap<>();
+
     /**
      * Creates a new instance
      *
@@ -91,6 +160,8 @@ public class SharedFirebasePreferences implements SharedPreferences {
         mCache = cache;
         mRoot = root;
         mSyncAdapter = new SyncAdapter(this);
+        mPushScheduler = new PushScheduler(this);
+        mChangeStream = new ChangeStream(this);
     }
 
     /**
@@ -105,6 +176,31 @@ public class SharedFirebasePreferences implements SharedPreferences {
         sPathPattern = patter;
     }
 
+    /**
+     * Enables or disables the multi process mode. In multi process mode only the app's main process
+     * holds the connection to Firebase and pushes changes. All other processes get a
+     * {@link MultiProcessSharedFirebasePreferences} which reads and writes the main process' data
+     * through {@link SharedFirebasePreferencesProvider} and is informed about all changes. Call this
+     * method in all processes before getting a instance, e.g. in {@link android.app.Application#onCreate()}.
+     *
+     * @param b true to enable the multi process mode
+     */
+    public static void setMultiProcessEnabled(boolean b) {
+        sMultiProcess = b;
+    }
+
+    /**
+     * Enables or disables partial pulls. By default {@link #pull()} fetches the summary first and
+     * only fetches the buckets of keys which were pushed since the last pull. Versions without
+     * summary support do not update the summary, disable partial pulls while devices with such
+     * versions push to the same preferences.
+     *
+     * @param b true to enable partial pulls
+     */
+    public static void setPartialPullsEnabled(boolean b) {
+        sPartialPulls = b;
+    }
+
     /**
      * Returns a instance for the given name
      *
@@ -150,7 +246,8 @@ public class SharedFirebasePreferences implements SharedPreferences {
      * Returns a instance for the given name
      *
      * @param con  a {@link Context}
-     * @param name the preferences names. If the name already exists as local preferences, the data will be pushed to Firebase
+     * @param name the preferences names. If the name already exists as local preferences, the data is only pushed to Firebase
+     *             with {@link #push()}. Use {@link PreferencesMigration} for large preferences.
      * @param mode the mode
      * @param db   the {@link FirebaseDatabase} to use
      * @return the instance
@@ -161,7 +258,13 @@ public class SharedFirebasePreferences implements SharedPreferences {
         // Get the prefs from Application to prevent a SharedfirebasePreferences instance is returned
         // from a context wrapped
         if (!sInstances.containsKey(name)) {
-            sInstances.put(name, new SharedFirebasePreferences(con.getApplicationContext().getSharedPreferences(name, mode), getRoot(name, db)));
+            if (sMultiProcess && !isMainProcess(con)) {
+                sInstances.put(name, new MultiProcessSharedFirebasePreferences(con.getApplicationContext(), name));
+            } else {
+                SharedFirebasePreferences prefs = new SharedFirebasePreferences(con.getApplicationContext().getSharedPreferences(name, mode), getRoot(name, db));
+                prefs.restoreSummary(con.getApplicationContext().getSharedPreferences(SUMMARY_PREFERENCES, Context.MODE_PRIVATE));
+                sInstances.put(name, prefs);
+            }
         }
 
         // Return the singleton
@@ -169,6 +272,29 @@ public class SharedFirebasePreferences implements SharedPreferences {
 
     }
 
+    /**
+     * Checks whether the current process is the app's main process, which hosts the
+     * {@link SharedFirebasePreferencesProvider}
+     *
+     * @param con a {@link Context}
+     * @return true if this is the main process
+     */
+    private static boolean isMainProcess(Context con) {
+        ActivityManager am = (ActivityManager) con.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+        if (processes != null) {
+            int pid = android.os.Process.myPid();
+            for (ActivityManager.RunningAppProcessInfo p : processes) {
+                if (p.pid == pid) {
+                    return con.getApplicationInfo().processName.equals(p.processName);
+                }
+            }
+        }
+
+        // Unknown, assume the main process to keep the default behaviour
+        return true;
+    }
+
     /**
      * Returns the default instance from {@link PreferenceManager}
      *
@@ -191,6 +317,32 @@ public class SharedFirebasePreferences implements SharedPreferences {
 
     }
 
+    /**
+     * Encrypts the values of the given keys with the given AES key before pushing them to
+     * firebase. Use this method instead of {@link #omitKeys(String...)} to sync sensitive data.
+     * All devices must use the same key. Requires API level 19.
+     *
+     * @param secretKey the AES {@link SecretKey}
+     * @param keys      all keys to be encrypted
+     * @throws GeneralSecurityException if the key can not be used
+     */
+    public void encryptKeys(SecretKey secretKey, String... keys) throws GeneralSecurityException {
+        mEncryption.addKeys(secretKey, keys);
+    }
+
+    /**
+     * Encrypts the values of all keys starting with the given prefix with the given AES key
+     * before pushing them to firebase. Requires API level 19.
+     *
+     * @param secretKey the AES {@link SecretKey}
+     * @param prefix    the prefix of the keys to be encrypted
+     * @throws GeneralSecurityException if the key can not be used
+     * @see #encryptKeys(SecretKey, String...)
+     */
+    public void encryptKeysWithPrefix(SecretKey secretKey, String prefix) throws GeneralSecurityException {
+        mEncryption.addPrefix(secretKey, prefix);
+    }
+
     /**
      * Fetches the latest data from Firebase
      *
@@ -212,16 +364,38 @@ public class SharedFirebasePreferences implements SharedPreferences {
 
     /**
      * Keeps the {@link SharedPreferences} in sync with the firebase database. This requires a active
-     * connection to the database and should not be used in background.
+     * connection to the database and should not be used in background. In multi process mode the
+     * preferences are kept in sync while any process requests it.
      *
      * @param b true to enable syncing, false to disbale
      */
     public void keepSynced(boolean b) {
-        mRoot.keepSynced(b);
+        requestSync(this, b);
+    }
+
+    /**
+     * Adds or removes a request to keep the preferences in sync. The preferences are kept in sync
+     * while at least one request exists.
+     *
+     * @param requester the object requesting, e.g. this instance or the token of another process
+     * @param b         true to add the request, false to remove it
+     */
+    synchronized void requestSync(Object requester, boolean b) {
+        boolean before = !mSyncRequests.isEmpty();
         if (b) {
-            mRoot.addValueEventListener(mSyncAdapter);
+            mSyncRequests.add(requester);
         } else {
-            mRoot.removeEventListener(mSyncAdapter);
+            mSyncRequests.remove(requester);
+        }
+
+        boolean after = !mSyncRequests.isEmpty();
+        if (before != after) {
+            mRoot.keepSynced(after);
+            if (after) {
+                mRoot.addValueEventListener(mSyncAdapter);
+            } else {
+                mRoot.removeEventListener(mSyncAdapter);
+            }
         }
     }
 
@@ -246,6 +420,269 @@ public class SharedFirebasePreferences implements SharedPreferences {
         });
     }
 
+    /**
+     * Returns the {@link PushScheduler} used to push changes made with a {@link Editor}. Use it to
+     * tune batching and rate limiting of background changes.
+     *
+     * @return the {@link PushScheduler}
+     */
+    public PushScheduler getPushScheduler() {
+        return mPushScheduler;
+    }
+
+    /**
+     * Schedules the push of the given keys changed with a {@link Editor}
+     *
+     * @param keys     the changed keys
+     * @param priority the {@link PushScheduler.Priority}
+     * @return true if the push was scheduled, false if the changes were lost
+     */
+    protected boolean schedulePush(Collection<String> keys, PushScheduler.Priority priority) {
+        mPushScheduler.schedule(keys, priority);
+        return true;
+    }
+
+    /**
+     * Returns the values of the given keys prepared to be pushed to Firebase and registers the
+     * push. Omitted keys are skipped, keys without a local value are mapped to null so they are
+     * removed from Firebase. Values of encrypted keys are encrypted. String sets are pushed as one
+     * child per element, only the changed elements are pushed if the remote set is known and no
+     * other push of the set is running. The index entries of the keys and new tokens for their
+     * buckets are added, see {@link PreferencesSummary}. The result of the push must be reported
+     * with {@link #onPushCompleted(Map, boolean)}.
+     *
+     * @param keys   the keys to push
+     * @param pushed the map to which all pushed keys are added, mapped to the pushed string set or
+     *               null for other values
+     * @return the values to be pushed
+     */
+    protected Map<String, Object> getPushValues(Collection<String> keys, Map<String, Set<String>> pushed) {
+        Map<String, Object> values = new HashMap<>();
+        for (String k : keys) {
+            if (!mOmmitedKeys.contains(k) && !PreferencesSummary.isReservedKey(k)) {
+                values.put(k, getLocalValue(k));
+            }
+        }
+        List<String> pushedKeys = new ArrayList<>(values.keySet());
+
+        try {
+            values = mEncryption.encryptAll(values);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt values", e);
+        }
+
+        // Replace sets with their changed elements, with one child per element or with a list
+        synchronized (mSyncedSets) {
+            for (String k : pushedKeys) {
+                Object v = values.get(k);
+                Set<String> set = null;
+                if (v instanceof Set) {
+                    //noinspection unchecked
+                    set = (Set<String>) v;
+                    Set<String> synced = mSyncedSets.get(k);
+                    if (synced != null && !mPendingPushes.containsKey(k)) {
+                        values.remove(k);
+                        StringSetCodec.diff(values, k, synced, set);
+                    } else {
+                        // The remote set is unknown while a earlier push is running
+                        values.put(k, StringSetCodec.encode(set));
+                    }
+                }
+
+                Integer pending = mPendingPushes.get(k);
+                mPendingPushes.put(k, pending == null ? 1 : pending + 1);
+                mLastPushes.put(k, pushed);
+
+                // Sets pushed as list have no children to diff against
+                pushed.put(k, set != null && StringSetCodec.isKeyEncodable(set) ? set : null);
+            }
+        }
+
+        // Index the keys and replace the tokens of their buckets in the same update
+        PreferencesSummary.addPushValues(values, pushedKeys);
+        return values;
+    }
+
+    /**
+     * Updates the synced string sets after a push registered with
+     * {@link #getPushValues(Collection, Map)} completed. Only the last push of a key knows the
+     * remote state, earlier pushes were either confirmed or replaced by its complete set.
+     *
+     * @param pushed  the pushed keys as filled by {@link #getPushValues(Collection, Map)}
+     * @param success true if the push succeeded
+     */
+    protected void onPushCompleted(Map<String, Set<String>> pushed, boolean success) {
+        synchronized (mSyncedSets) {
+            for (Map.Entry<String, Set<String>> e : pushed.entrySet()) {
+                String k = e.getKey();
+                Integer pending = mPendingPushes.get(k);
+                if (pending == null || pending <= 1) {
+                    mPendingPushes.remove(k);
+                } else {
+                    mPendingPushes.put(k, pending - 1);
+                }
+
+                if (mLastPushes.get(k) == pushed) {
+                    mLastPushes.remove(k);
+                    if (success && e.getValue() != null) {
+                        mSyncedSets.put(k, e.getValue());
+                    } else {
+                        mSyncedSets.remove(k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the local value of the given key without copying all values like {@link #getAll()}.
+     * {@link SharedPreferences} has no untyped getter and its typed getters throw a
+     * {@link ClassCastException} for values of other types, so the getters are tried in turn.
+     *
+     * @param k the key
+     * @return the value or null if the key does not exist
+     */
+    private Object getLocalValue(String k) {
+        if (!mCache.contains(k)) {
+            return null;
+        }
+
+        try {
+            return mCache.getString(k, null);
+        } catch (ClassCastException e) {
+            // Not a string
+        }
+        try {
+            return mCache.getStringSet(k, null);
+        } catch (ClassCastException e) {
+            // Not a string set
+        }
+        try {
+            return mCache.getBoolean(k, false);
+        } catch (ClassCastException e) {
+            // Not a boolean
+        }
+        try {
+            return mCache.getInt(k, 0);
+        } catch (ClassCastException e) {
+            // Not a int
+        }
+        try {
+            return mCache.getLong(k, 0);
+        } catch (ClassCastException e) {
+            // Not a long
+        }
+        return mCache.getFloat(k, 0);
+    }
+
+    /**
+     * Restores the summary tokens seen by the last pulls and persists them from now on
+     *
+     * @param state the {@link SharedPreferences} persisting the tokens
+     */
+    void restoreSummary(SharedPreferences state) {
+        mSummaryState = state;
+        for (int i = 0; i < PreferencesSummary.BUCKETS; i++) {
+            mSummary.setSynced(i, state.getString(getSummaryStateKey(i), null));
+        }
+    }
+
+    /**
+     * Sets the summary tokens seen by a pull after the values of the buckets were applied
+     *
+     * @param tokens the tokens mapped by bucket, only the buckets contained are changed
+     */
+    void setSyncedSummary(Map<Integer, String> tokens) {
+        SharedPreferences.Editor e = mSummaryState == null ? null : mSummaryState.edit();
+        for (Map.Entry<Integer, String> t : tokens.entrySet()) {
+            mSummary.setSynced(t.getKey(), t.getValue());
+            if (e != null) {
+                e.putString(getSummaryStateKey(t.getKey()), t.getValue());
+            }
+        }
+
+        if (e != null) {
+            e.apply();
+        }
+    }
+
+    /**
+     * Returns the key used to persist the summary token of the given bucket
+     *
+     * @param bucket the bucket
+     * @return the key
+     */
+    private String getSummaryStateKey(int bucket) {
+        return getRoot().toString() + "|" + bucket;
+    }
+
+    /**
+     * Observes the changes of all keys accepted by the given filter. In contrast to
+     * {@link #registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)} the
+     * listener is called once per batch of changes with the origin of the changes. Events waiting
+     * for delivery are merged, so a slow listener only receives the latest state.
+     *
+     * @param filter   the {@link ChangeStream.KeyFilter}, e.g. {@link ChangeStream#prefix(String)}
+     * @param listener the {@link OnPreferencesChangedListener} called on the main thread
+     * @return the {@link ChangeStream.Subscription}, call {@link ChangeStream.Subscription#unsubscribe()} when done
+     */
+    public ChangeStream.Subscription observe(@NonNull ChangeStream.KeyFilter filter, @NonNull OnPreferencesChangedListener listener) {
+        return mChangeStream.subscribe(filter, listener);
+    }
+
+    /**
+     * Observes the changes of all keys accepted by the given filter
+     *
+     * @param filter   the {@link ChangeStream.KeyFilter}
+     * @param listener the {@link OnPreferencesChangedListener}
+     * @param handler  the {@link Handler} on which the listener is called
+     * @return the {@link ChangeStream.Subscription}
+     * @see #observe(ChangeStream.KeyFilter, OnPreferencesChangedListener)
+     */
+    public ChangeStream.Subscription observe(@NonNull ChangeStream.KeyFilter filter, @NonNull OnPreferencesChangedListener listener, @NonNull Handler handler) {
+        return mChangeStream.subscribe(filter, listener, handler);
+    }
+
+    /**
+     * Returns the {@link ChangeStream} emitting the change events
+     *
+     * @return the {@link ChangeStream}
+     */
+    ChangeStream getChangeStream() {
+        return mChangeStream;
+    }
+
+    /**
+     * Updates the synced state of the string sets after a pull was applied. Only sets fetched with
+     * one child per element are remembered, sets pushed by older versions as list are replaced
+     * completely with the next push. Sets with running pushes are updated when the pushes complete.
+     *
+     * @param fetched    the fetched and decrypted values
+     * @param replaceAll true if all values were fetched
+     */
+    protected void updateSyncedSets(Map<String, Object> fetched, boolean replaceAll) {
+        Map<String, ?> all = getAll();
+        synchronized (mSyncedSets) {
+            if (replaceAll) {
+                mSyncedSets.clear();
+            }
+
+            for (Map.Entry<String, Object> e : fetched.entrySet()) {
+                Object local = all.get(e.getKey());
+                if (mPendingPushes.containsKey(e.getKey())) {
+                    continue;
+                } else if (e.getValue() instanceof Map && local instanceof Set) {
+                    //noinspection unchecked
+                    mSyncedSets.put(e.getKey(), (Set<String>) local);
+                } else {
+                    mSyncedSets.remove(e.getKey());
+                }
+            }
+
+            mSyncedSets.keySet().retainAll(all.keySet());
+        }
+    }
+
     @Override
     public Map<String, ?> getAll() {
         return mCache.getAll();
@@ -343,7 +780,23 @@ public class SharedFirebasePreferences implements SharedPreferences {
     }
 
     /**
-     * A editor pushing changed to firebase
+     * A listener to get notified about batches of changes
+     */
+    public interface OnPreferencesChangedListener {
+
+        /**
+         * Called when keys were changed
+         *
+         * @param preferences the changed {@link SharedFirebasePreferences}
+         * @param event       the {@link ChangeStream.Event} describing the changes
+         */
+        void onPreferencesChanged(SharedFirebasePreferences preferences, ChangeStream.Event event);
+
+    }
+
+    /**
+     * A editor pushing changed to firebase. The changed keys are pushed by the
+     * {@link PushScheduler} with the priority set with {@link #setPriority(PushScheduler.Priority)}.
      */
     public static class Editor implements SharedPreferences.Editor {
 
@@ -357,6 +810,21 @@ public class SharedFirebasePreferences implements SharedPreferences {
          */
         private SharedFirebasePreferences mPrefs;
 
+        /**
+         * The keys changed with this editor
+         */
+        private Set<String> mChangedKeys = new LinkedHashSet<>();
+
+        /**
+         * The priority used to push the changes
+         */
+        private PushScheduler.Priority mPriority = PushScheduler.Priority.INTERACTIVE;
+
+        /**
+         * The {@link ChangeStream.Origin} emitted for the changes
+         */
+        private ChangeStream.Origin mOrigin = ChangeStream.Origin.LOCAL;
+
         /**
          * Creates a new instance
          *
@@ -367,58 +835,91 @@ public class SharedFirebasePreferences implements SharedPreferences {
             mPrefs = prefs;
         }
 
+        /**
+         * Sets the priority used to push the changes. Use {@link PushScheduler.Priority#BACKGROUND}
+         * for bulk changes not triggered by the user, e.g. migrations writing many keys.
+         *
+         * @param priority the {@link PushScheduler.Priority}, {@link PushScheduler.Priority#INTERACTIVE} by default
+         * @return this instance
+         */
+        public Editor setPriority(@NonNull PushScheduler.Priority priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        /**
+         * Sets the {@link ChangeStream.Origin} emitted for the changes. Used by
+         * {@link SharedFirebasePreferencesProvider} to apply changes made by other processes.
+         *
+         * @param origin the {@link ChangeStream.Origin}, {@link ChangeStream.Origin#LOCAL} by default
+         * @return this instance
+         */
+        Editor setOrigin(@NonNull ChangeStream.Origin origin) {
+            mOrigin = origin;
+            return this;
+        }
+
         @Override
         public SharedPreferences.Editor putString(String s, @Nullable String s1) {
+            mChangedKeys.add(s);
             mWrapped.putString(s, s1);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putStringSet(String s, @Nullable Set<String> set) {
+            mChangedKeys.add(s);
             mWrapped.putStringSet(s, set);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putInt(String s, int i) {
+            mChangedKeys.add(s);
             mWrapped.putInt(s, i);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putLong(String s, long l) {
+            mChangedKeys.add(s);
             mWrapped.putLong(s, l);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putFloat(String s, float v) {
+            mChangedKeys.add(s);
             mWrapped.putFloat(s, v);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putBoolean(String s, boolean b) {
+            mChangedKeys.add(s);
             mWrapped.putBoolean(s, b);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor remove(String s) {
+            mChangedKeys.add(s);
             mWrapped.remove(s);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor clear() {
+            mChangedKeys.addAll(mPrefs.getAll().keySet());
             mWrapped.clear();
             return this;
         }
 
         @Override
         public boolean commit() {
-            if (mWrapped.commit()) {
-                mPrefs.push();
+            Set<String> keys = takeChangedKeys();
+            if (mWrapped.commit() && mPrefs.schedulePush(keys, mPriority)) {
+                mPrefs.getChangeStream().emit(keys, mOrigin);
                 return true;
             } else {
                 return false;
@@ -427,8 +928,24 @@ public class SharedFirebasePreferences implements SharedPreferences {
 
         @Override
         public void apply() {
+            Set<String> keys = takeChangedKeys();
             mWrapped.apply();
-            mPrefs.push();
+            if (mPrefs.schedulePush(keys, mPriority)) {
+                mPrefs.getChangeStream().emit(keys, mOrigin);
+            }
+        }
+
+        /**
+         * Returns the keys changed since the last {@link #commit()} or {@link #apply()} and forgets
+         * them, just like the wrapped editor forgets its changes, so a reused editor does not
+         * push and emit them again
+         *
+         * @return the changed keys
+         */
+        private Set<String> takeChangedKeys() {
+            Set<String> keys = new LinkedHashSet<>(mChangedKeys);
+            mChangedKeys.clear();
+            return keys;
         }
     }
 
@@ -474,7 +991,9 @@ public class SharedFirebasePreferences implements SharedPreferences {
     }
 
     /**
-     * A task fetching the latest values from firebase
+     * A task fetching the latest values from firebase. The {@link PreferencesSummary} is fetched
+     * first, nothing else is fetched if no bucket was pushed since the last pull and only the
+     * changed buckets are fetched otherwise.
      */
     public static class PullTask implements ValueEventListener {
 
@@ -488,14 +1007,64 @@ public class SharedFirebasePreferences implements SharedPreferences {
          */
         private List<OnPullCompleteListener> mListener = new ArrayList<>();
 
+        /**
+         * The keys of the changed buckets mapped by bucket, filled while fetching the index
+         */
+        private Map<Integer, Set<String>> mBucketKeys = new HashMap<>();
+
+        /**
+         * The remote tokens of the changed buckets mapped by bucket
+         */
+        private Map<Integer, String> mBucketTokens = new HashMap<>();
+
+        /**
+         * The fetched values of the changed buckets
+         */
+        private Map<String, Object> mBucketValues = new HashMap<>();
+
+        /**
+         * The number of requests which are not completed yet while fetching buckets
+         */
+        private int mPendingRequests;
+
+        /**
+         * Whether fetching the buckets failed or was replaced by fetching everything
+         */
+        private boolean mBucketsAborted;
+
         /**
          * Creates a new instance
          *
          * @param preferences the {@link SharedFirebasePreferences} which should be fetched from Firebase
          */
         public PullTask(SharedFirebasePreferences preferences) {
+            this(preferences, true);
+        }
+
+        /**
+         * Creates a new instance
+         *
+         * @param preferences the {@link SharedFirebasePreferences} which should be fetched from Firebase
+         * @param fetch       false if the pull is performed by another process, which reports the
+         *                    result with {@link #dispatchFetchSucceeded()} and {@link #dispatchFetchFailed(Exception)}
+         */
+        PullTask(SharedFirebasePreferences preferences, boolean fetch) {
             mPreferences = preferences;
-            mPreferences.getRoot().addListenerForSingleValueEvent(this);
+            if (!fetch) {
+                return;
+            }
+
+            mPreferences.getRoot().child(PreferencesSummary.SUMMARY_KEY).addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    onSummaryFetched(dataSnapshot);
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    dispatchFetchFailed(databaseError.toException());
+                }
+            });
 
         }
 
@@ -524,33 +1093,272 @@ public class SharedFirebasePreferences implements SharedPreferences {
         }
 
 
+        /**
+         * Compares the fetched summary with the tokens seen by the last pull and fetches the
+         * changed buckets
+         *
+         * @param summary the fetched summary
+         */
+        private void onSummaryFetched(DataSnapshot summary) {
+            // Data pushed without summary or partial pulls disabled, fetch everything
+            if (!summary.exists() || !sPartialPulls) {
+                mPreferences.getRoot().addListenerForSingleValueEvent(this);
+                return;
+            }
+
+            String[] remote = getTokens(summary);
+            List<Integer> changed = mPreferences.mSummary.getChangedBuckets(remote);
+            if (changed.isEmpty()) {
+                dispatchFetchSucceeded();
+            } else if (changed.size() > PreferencesSummary.BUCKETS / 2) {
+                mPreferences.getRoot().addListenerForSingleValueEvent(this);
+            } else {
+                for (Integer b : changed) {
+                    mBucketTokens.put(b, remote[b]);
+                }
+                fetchIndex(changed);
+            }
+        }
+
+        /**
+         * Returns the tokens of the given summary
+         *
+         * @param summary the summary
+         * @return the tokens mapped by bucket, null for buckets never pushed
+         */
+        private static String[] getTokens(DataSnapshot summary) {
+            String[] tokens = new String[PreferencesSummary.BUCKETS];
+            for (int i = 0; i < PreferencesSummary.BUCKETS; i++) {
+                Object token = summary.child(String.valueOf(i)).getValue();
+                tokens[i] = token == null ? null : token.toString();
+            }
+            return tokens;
+        }
+
+        /**
+         * Fetches the keys of the given buckets
+         *
+         * @param buckets the buckets to fetch
+         */
+        private void fetchIndex(List<Integer> buckets) {
+            mPendingRequests = buckets.size();
+            for (final Integer b : buckets) {
+                mPreferences.getRoot().child(PreferencesSummary.INDEX_KEY).child(String.valueOf(b)).addListenerForSingleValueEvent(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        if (mBucketsAborted) {
+                            return;
+                        }
+
+                        // A pushed bucket without index was not pushed by this library, fetch everything
+                        if (!dataSnapshot.exists() && mBucketTokens.get(b) != null) {
+                            mBucketsAborted = true;
+                            mPreferences.getRoot().addListenerForSingleValueEvent(PullTask.this);
+                            return;
+                        }
+
+                        Set<String> keys = new HashSet<>();
+                        for (DataSnapshot s : dataSnapshot.getChildren()) {
+                            keys.add(s.getKey());
+                        }
+                        mBucketKeys.put(b, keys);
+
+                        if (--mPendingRequests == 0 && !mBucketsAborted) {
+                            fetchBucketValues();
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        onBucketsFailed(databaseError);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Fetches the values of all keys in {@link #mBucketKeys}
+         */
+        private void fetchBucketValues() {
+            for (Set<String> keys : mBucketKeys.values()) {
+                mPendingRequests += keys.size();
+            }
+
+            if (mPendingRequests == 0) {
+                applyBuckets();
+                return;
+            }
+
+            for (Set<String> keys : mBucketKeys.values()) {
+                for (final String k : keys) {
+                    mPreferences.getRoot().child(k).addListenerForSingleValueEvent(new ValueEventListener() {
+                        @Override
+                        public void onDataChange(DataSnapshot dataSnapshot) {
+                            mBucketValues.put(k, dataSnapshot.getValue());
+                            if (--mPendingRequests == 0 && !mBucketsAborted) {
+                                applyBuckets();
+                            }
+                        }
+
+                        @Override
+                        public void onCancelled(DatabaseError databaseError) {
+                            onBucketsFailed(databaseError);
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Applies the fetched values of all indexed keys of the fetched buckets. Keys removed
+         * remotely are removed, local keys not pushed yet are kept.
+         */
+        private void applyBuckets() {
+            try {
+                Map<String, ?> before = mPreferences.getAll();
+                SharedPreferences.Editor e = mPreferences.getCache().edit();
+                List<String> failed = new ArrayList<>();
+                Map<String, Object> values = mPreferences.mEncryption.decryptAll(mBucketValues, failed);
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    if (mPreferences.mOmmitedKeys.contains(entry.getKey())) {
+                        continue;
+                    }
+
+                    if (entry.getValue() == null) {
+                        e.remove(entry.getKey());
+                    } else {
+                        putValue(e, entry.getKey(), entry.getValue());
+                    }
+                }
+                e.apply();
+                mPreferences.updateSyncedSets(values, false);
+                Map<Integer, String> synced = new HashMap<>(mBucketTokens);
+                forgetBuckets(synced, failed);
+                mPreferences.setSyncedSummary(synced);
+                emitChanges(before);
+            } catch (Exception e) {
+                Log.e(TAG, "Error while processing fetched data", e);
+                dispatchFetchFailed(e);
+                return;
+            }
+
+            dispatchFetchSucceeded();
+        }
+
+        /**
+         * Forgets the tokens of the buckets containing the given keys which could not be
+         * decrypted, so the next pull fetches the buckets again, e.g. after the right key was set
+         *
+         * @param tokens the tokens to be marked as seen mapped by bucket
+         * @param failed the keys which could not be decrypted
+         */
+        private static void forgetBuckets(Map<Integer, String> tokens, List<String> failed) {
+            for (String k : failed) {
+                tokens.put(PreferencesSummary.getBucket(k), null);
+            }
+        }
+
+        /**
+         * Emits a {@link ChangeStream.Event} for all keys changed compared to the given values.
+         * Numbers are compared by value because Firebase returns other number types than stored.
+         *
+         * @param before the values before the pull was applied
+         */
+        private void emitChanges(Map<String, ?> before) {
+            Map<String, ?> after = mPreferences.getAll();
+            Set<String> changed = new HashSet<>();
+            for (Map.Entry<String, ?> entry : after.entrySet()) {
+                if (!ChangeStream.isSameValue(before.get(entry.getKey()), entry.getValue())) {
+                    changed.add(entry.getKey());
+                }
+            }
+            for (String k : before.keySet()) {
+                if (!after.containsKey(k)) {
+                    changed.add(k);
+                }
+            }
+
+            mPreferences.getChangeStream().emit(changed, ChangeStream.Origin.SYNC);
+        }
+
+        /**
+         * Called when fetching a bucket failed
+         *
+         * @param databaseError the {@link DatabaseError}
+         */
+        private void onBucketsFailed(DatabaseError databaseError) {
+            if (!mBucketsAborted) {
+                mBucketsAborted = true;
+                dispatchFetchFailed(databaseError.toException());
+            }
+        }
+
+        /**
+         * Puts the given value fetched from Firebase into the given {@link SharedPreferences.Editor}
+         *
+         * @param e the {@link SharedPreferences.Editor}
+         * @param k the key
+         * @param v the value
+         */
+        static void putValue(SharedPreferences.Editor e, String k, Object v) {
+            if (v instanceof String) {
+                e.putString(k, (String) v);
+            } else if (v instanceof Long) {
+                e.putLong(k, (Long) v);
+            } else if (v instanceof Integer) {
+                e.putInt(k, (Integer) v);
+            } else if (v instanceof Boolean) {
+                e.putBoolean(k, (Boolean) v);
+            } else if (v instanceof Float) {
+                e.putFloat(k, (Float) v);
+            } else if (v instanceof List || v instanceof Map) {
+                e.putStringSet(k, StringSetCodec.decode(v));
+            } else if (v instanceof Set) {
+                //noinspection unchecked
+                e.putStringSet(k, (Set<String>) v);
+            }
+        }
+
         @Override
         public void onDataChange(DataSnapshot dataSnapshot) {
             // Copy values into cache to prevent values to be instantly pushed to Firebase again
             try {
-                SharedPreferences.Editor e = mPreferences.getCache().edit().clear();
+                Map<String, Object> values = new HashMap<>();
                 for (DataSnapshot s : dataSnapshot.getChildren()) {
-                    Object v = s.getValue();
-                    String k = s.getKey();
-                    if (v instanceof String) {
-                        e.putString(k, (String) v);
-                    } else if (v instanceof Long) {
-                        e.putLong(k, (Long) v);
-                    } else if (v instanceof Integer) {
-                        e.putInt(k, (Integer) v);
-                    } else if (v instanceof Boolean) {
-                        e.putBoolean(k, (Boolean) v);
-                    } else if (v instanceof Float) {
-                        e.putFloat(k, (Float) v);
-                    } else if (v instanceof List) {
-                        //noinspection unchecked
-                        e.putStringSet(k, new HashSet<>((List<String>) v));
+                    if (!PreferencesSummary.isReservedKey(s.getKey())) {
+                        values.put(s.getKey(), s.getValue());
                     }
                 }
+
+                // All buckets are in sync with the tokens of this snapshot
+                String[] tokens = getTokens(dataSnapshot.child(PreferencesSummary.SUMMARY_KEY));
+                Map<Integer, String> synced = new HashMap<>();
+                for (int i = 0; i < tokens.length; i++) {
+                    synced.put(i, tokens[i]);
+                }
+
+                // Decrypt all values in one batch
+                Map<String, ?> before = mPreferences.getAll();
+                SharedPreferences.Editor e = mPreferences.getCache().edit().clear();
+                List<String> failed = new ArrayList<>();
+                values = mPreferences.mEncryption.decryptAll(values, failed);
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    putValue(e, entry.getKey(), entry.getValue());
+                }
+
+                // Keep the local values which could not be decrypted
+                for (String k : failed) {
+                    putValue(e, k, before.get(k));
+                }
                 e.apply();
+                mPreferences.updateSyncedSets(values, true);
+                forgetBuckets(synced, failed);
+                mPreferences.setSyncedSummary(synced);
+                emitChanges(before);
             } catch (Exception e) {
                 Log.e(TAG, "Error while processing fetched data", e);
                 dispatchFetchFailed(e);
+                return;
             }
 
             // Dispatch event
@@ -561,7 +1369,7 @@ public class SharedFirebasePreferences implements SharedPreferences {
          * Dispatches the {@link OnPullCompleteListener#onPullFailed(Exception)}
          * event for all listeners
          */
-        private void dispatchFetchFailed(Exception e) {
+        void dispatchFetchFailed(Exception e) {
             for (OnPullCompleteListener l : mListener) {
                 try {
                     l.onPullFailed(e);
@@ -577,7 +1385,7 @@ public class SharedFirebasePreferences implements SharedPreferences {
          * Dispatches the {@link OnPullCompleteListener#onPullSucceeded(SharedFirebasePreferences)}
          * event for all listeners
          */
-        private void dispatchFetchSucceeded() {
+        void dispatchFetchSucceeded() {
             for (OnPullCompleteListener l : mListener) {
                 try {
                     l.onPullSucceeded(mPreferences);
@@ -611,24 +1419,40 @@ public class SharedFirebasePreferences implements SharedPreferences {
          * @param preferences the {@link SharedFirebasePreferences} to be pushed
          */
         public PushTask(SharedFirebasePreferences preferences) {
-            // Replace sets with lists to use default firebase serialization
-            HashMap<String, Object> values = new HashMap<>(preferences.getAll());
-            for (String k : values.keySet()) {
-                if (values.get(k) instanceof Set) {
-                    //noinspection unchecked
-                    values.put(k, new ArrayList<>((Set<String>) values.get(k)));
-                }
-            }
+            this(preferences, preferences.getAll().keySet());
+        }
 
-            // Remove omitted values
-            for (String key : new ArrayList<>(values.keySet())) {
-                if (preferences.mOmmitedKeys.contains(key)) {
-                    values.remove(key);
-                }
+        /**
+         * Creates a new instance and pushes the given keys
+         *
+         * @param preferences the {@link SharedFirebasePreferences} to be pushed
+         * @param keys        the keys to push
+         */
+        public PushTask(final SharedFirebasePreferences preferences, Collection<String> keys) {
+            // Start push, nothing to do if all keys are omitted
+            final Map<String, Set<String>> pushed = new HashMap<>();
+            Map<String, Object> values = preferences.getPushValues(keys, pushed);
+            Task<Void> task;
+            try {
+                task = values.isEmpty() ? Tasks.<Void>forResult(null) : preferences.getRoot().updateChildren(values);
+            } catch (RuntimeException e) {
+                // E.g. a invalid key, fail the task so the registered push is released
+                task = Tasks.forException(e);
             }
+            mTask = task;
 
-            // Start push
-            mTask = preferences.getRoot().updateChildren(values);
+            // Remember the pushed sets only once they are confirmed
+            mTask.addOnSuccessListener(new OnSuccessListener<Void>() {
+                @Override
+                public void onSuccess(Void aVoid) {
+                    preferences.onPushCompleted(pushed, true);
+                }
+            }).addOnFailureListener(new OnFailureListener() {
+                @Override
+                public void onFailure(@NonNull Exception e) {
+                    preferences.onPushCompleted(pushed, false);
+                }
+            });
         }
 
         @Override
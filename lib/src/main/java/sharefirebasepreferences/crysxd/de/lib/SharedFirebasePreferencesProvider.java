@@ -0,0 +1,501 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link ContentProvider} running in the app's main process which gives the other processes
+ * access to the {@link SharedFirebasePreferences} of the main process in multi process mode. All
+ * requests are made with {@link android.content.ContentResolver#call(Uri, String, String, Bundle)},
+ * changes are announced with {@link android.content.ContentResolver#notifyChange(Uri, android.database.ContentObserver)}.
+ *
+ * @see SharedFirebasePreferences#setMultiProcessEnabled(boolean)
+ */
+public class SharedFirebasePreferencesProvider extends ContentProvider {
+
+    /**
+     * Returns all values as {@link Bundle} in {@link #EXTRA_VALUES} and the keys last changed by
+     * a pull or sync in {@link #EXTRA_SYNCED_KEYS}
+     */
+    static final String METHOD_GET_ALL = "getAll";
+
+    /**
+     * Sets the values in {@link #EXTRA_VALUES} and removes the keys in {@link #EXTRA_REMOVED},
+     * returns whether the changes were committed in {@link #EXTRA_SUCCESS}
+     */
+    static final String METHOD_EDIT = "edit";
+
+    /**
+     * Pulls the preferences and reports the result to {@link #EXTRA_RECEIVER}
+     */
+    static final String METHOD_PULL = "pull";
+
+    /**
+     * Pushes the preferences and reports the result to {@link #EXTRA_RECEIVER}
+     */
+    static final String METHOD_PUSH = "push";
+
+    /**
+     * Keeps the preferences synced while at least one process requested it and is alive, the
+     * requesting process is identified by {@link #EXTRA_TOKEN}
+     */
+    static final String METHOD_KEEP_SYNCED = "keepSynced";
+
+    /**
+     * The values, a {@link Bundle}
+     */
+    static final String EXTRA_VALUES = "values";
+
+    /**
+     * The keys whose last change was made by a pull or sync, a String array
+     */
+    static final String EXTRA_SYNCED_KEYS = "syncedKeys";
+
+    /**
+     * The removed keys, a String array
+     */
+    static final String EXTRA_REMOVED = "removed";
+
+    /**
+     * The {@link PushScheduler.Priority} name
+     */
+    static final String EXTRA_PRIORITY = "priority";
+
+    /**
+     * The {@link ResultReceiver} informed about the result
+     */
+    static final String EXTRA_RECEIVER = "receiver";
+
+    /**
+     * Whether to keep synced, a boolean
+     */
+    static final String EXTRA_SYNCED = "synced";
+
+    /**
+     * The {@link SyncToken} identifying the process requesting to keep synced
+     */
+    static final String EXTRA_TOKEN = "token";
+
+    /**
+     * Whether the changes were committed, a boolean
+     */
+    static final String EXTRA_SUCCESS = "success";
+
+    /**
+     * The error message passed to the {@link ResultReceiver}
+     */
+    static final String EXTRA_ERROR = "error";
+
+    /**
+     * The result code for success
+     */
+    static final int RESULT_SUCCESS = 0;
+
+    /**
+     * The result code for failure
+     */
+    static final int RESULT_FAILURE = 1;
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The suffix of the authority, the authority is the app's package name followed by this suffix
+     */
+    private static final String AUTHORITY_SUFFIX = ".sharedfirebasepreferences";
+
+    /**
+     * The listeners announcing changes mapped by the preferences' names. {@link SharedPreferences}
+     * only keeps weak references to listeners.
+     */
+    private final Map<String, SharedPreferences.OnSharedPreferenceChangeListener> mChangeListeners = new HashMap<>();
+
+    /**
+     * The tokens of the processes requesting to keep the preferences synced mapped to the
+     * {@link IBinder.DeathRecipient} removing their request, mapped by the preferences' names
+     */
+    private final Map<String, Map<IBinder, IBinder.DeathRecipient>> mSyncRequests = new HashMap<>();
+
+    /**
+     * The {@link Handler} used to combine the notifications for multiple changed keys
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the {@link Uri} of the preferences with the given name
+     *
+     * @param con  a {@link Context}
+     * @param name the name
+     * @return the {@link Uri}
+     */
+    static Uri getUri(Context con, String name) {
+        return Uri.parse("content://" + con.getPackageName() + AUTHORITY_SUFFIX + "/" + Uri.encode(name));
+    }
+
+    /**
+     * Converts the given values to a {@link Bundle}, string sets are converted to lists
+     *
+     * @param values the values
+     * @return the {@link Bundle}
+     */
+    static Bundle toBundle(Map<String, ?> values) {
+        Bundle b = new Bundle();
+        for (Map.Entry<String, ?> e : values.entrySet()) {
+            Object v = e.getValue();
+            if (v instanceof String) {
+                b.putString(e.getKey(), (String) v);
+            } else if (v instanceof Integer) {
+                b.putInt(e.getKey(), (Integer) v);
+            } else if (v instanceof Long) {
+                b.putLong(e.getKey(), (Long) v);
+            } else if (v instanceof Float) {
+                b.putFloat(e.getKey(), (Float) v);
+            } else if (v instanceof Boolean) {
+                b.putBoolean(e.getKey(), (Boolean) v);
+            } else if (v instanceof Set) {
+                //noinspection unchecked
+                b.putStringArrayList(e.getKey(), new ArrayList<>((Set<String>) v));
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String name, @Nullable Bundle extras) {
+        if (name == null) {
+            throw new IllegalArgumentException("No preferences name given");
+        }
+
+        SharedFirebasePreferences prefs = getPreferences(name);
+        switch (method) {
+            case METHOD_GET_ALL:
+                Set<String> synced = prefs.getChangeStream().getKeysChangedBy(ChangeStream.Origin.SYNC);
+                Bundle result = new Bundle();
+                result.putBundle(EXTRA_VALUES, toBundle(prefs.getAll()));
+                result.putStringArray(EXTRA_SYNCED_KEYS, synced.toArray(new String[synced.size()]));
+                return result;
+
+            case METHOD_EDIT:
+                Bundle edited = new Bundle();
+                edited.putBoolean(EXTRA_SUCCESS, edit(prefs, extras));
+                return edited;
+
+            case METHOD_PULL:
+                pull(prefs, (ResultReceiver) getExtras(extras).getParcelable(EXTRA_RECEIVER));
+                return null;
+
+            case METHOD_PUSH:
+                push(prefs, (ResultReceiver) getExtras(extras).getParcelable(EXTRA_RECEIVER));
+                return null;
+
+            case METHOD_KEEP_SYNCED:
+                extras = getExtras(extras);
+                extras.setClassLoader(SyncToken.class.getClassLoader());
+                SyncToken token = extras.getParcelable(EXTRA_TOKEN);
+                if (token == null) {
+                    throw new IllegalArgumentException("No token given");
+                }
+                keepSynced(name, prefs, token.getBinder(), extras.getBoolean(EXTRA_SYNCED));
+                return null;
+
+            default:
+                throw new UnsupportedOperationException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Returns the given extras or throws a exception if null
+     *
+     * @param extras the extras
+     * @return the extras
+     */
+    private static Bundle getExtras(Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("No extras given");
+        }
+
+        return extras;
+    }
+
+    /**
+     * Returns the instance with the given name and starts announcing its changes
+     *
+     * @param name the name
+     * @return the {@link SharedFirebasePreferences}
+     */
+    private synchronized SharedFirebasePreferences getPreferences(final String name) {
+        SharedFirebasePreferences prefs = SharedFirebasePreferences.getInstance(getContext(), name, Context.MODE_PRIVATE);
+        if (!mChangeListeners.containsKey(name)) {
+            final Uri uri = getUri(getContext(), name);
+            final Runnable notify = new Runnable() {
+                @Override
+                public void run() {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            };
+
+            SharedPreferences.OnSharedPreferenceChangeListener l = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
+                    // Announce once for all keys changed together
+                    mHandler.removeCallbacks(notify);
+                    mHandler.post(notify);
+                }
+            };
+            mChangeListeners.put(name, l);
+            prefs.registerOnSharedPreferenceChangeListener(l);
+        }
+
+        return prefs;
+    }
+
+    /**
+     * Applies the changes in the given extras
+     *
+     * @param prefs  the {@link SharedFirebasePreferences} to edit
+     * @param extras the extras
+     * @return true if the changes were committed
+     */
+    private boolean edit(SharedFirebasePreferences prefs, Bundle extras) {
+        extras = getExtras(extras);
+        // The changes were made by another process, not by this one
+        SharedFirebasePreferences.Editor e = prefs.edit().setOrigin(ChangeStream.Origin.PROCESS);
+        String priority = extras.getString(EXTRA_PRIORITY);
+        if (priority != null) {
+            e.setPriority(PushScheduler.Priority.valueOf(priority));
+        }
+
+        Bundle values = extras.getBundle(EXTRA_VALUES);
+        if (values != null) {
+            for (String k : values.keySet()) {
+                SharedFirebasePreferences.PullTask.putValue(e, k, values.get(k));
+            }
+        }
+
+        String[] removed = extras.getStringArray(EXTRA_REMOVED);
+        if (removed != null) {
+            for (String k : removed) {
+                e.remove(k);
+            }
+        }
+
+        return e.commit();
+    }
+
+    /**
+     * Pulls the given preferences
+     *
+     * @param prefs    the {@link SharedFirebasePreferences} to pull
+     * @param receiver the {@link ResultReceiver} to inform
+     */
+    private void pull(SharedFirebasePreferences prefs, final ResultReceiver receiver) {
+        prefs.pull().addOnPullCompleteListener(new SharedFirebasePreferences.OnPullCompleteListener() {
+            @Override
+            public void onPullSucceeded(SharedFirebasePreferences preferences) {
+                sendResult(receiver, null);
+            }
+
+            @Override
+            public void onPullFailed(Exception e) {
+                sendResult(receiver, e);
+            }
+        });
+    }
+
+    /**
+     * Pushes the given preferences
+     *
+     * @param prefs    the {@link SharedFirebasePreferences} to push
+     * @param receiver the {@link ResultReceiver} to inform
+     */
+    private void push(SharedFirebasePreferences prefs, final ResultReceiver receiver) {
+        prefs.push().addOnSuccessListener(new OnSuccessListener<Void>() {
+            @Override
+            public void onSuccess(Void aVoid) {
+                sendResult(receiver, null);
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                sendResult(receiver, e);
+            }
+        });
+    }
+
+    /**
+     * Adds or removes the sync request of the process owning the given token. The request is
+     * removed when the process dies. The requests are counted together with the requests of the
+     * main process, see {@link SharedFirebasePreferences#requestSync(Object, boolean)}.
+     *
+     * @param name  the name of the preferences
+     * @param prefs the {@link SharedFirebasePreferences}
+     * @param token the token of the requesting process
+     * @param b     true to request syncing, false to revoke the request
+     */
+    private synchronized void keepSynced(final String name, final SharedFirebasePreferences prefs, final IBinder token, boolean b) {
+        Map<IBinder, IBinder.DeathRecipient> requests = mSyncRequests.get(name);
+        if (requests == null) {
+            requests = new HashMap<>();
+            mSyncRequests.put(name, requests);
+        }
+
+        if (b && !requests.containsKey(token)) {
+            IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    Log.i(TAG, "Process requesting to keep " + name + " synced died");
+                    keepSynced(name, prefs, token, false);
+                }
+            };
+
+            try {
+                token.linkToDeath(recipient, 0);
+            } catch (RemoteException e) {
+                // The process already died
+                return;
+            }
+
+            requests.put(token, recipient);
+            prefs.requestSync(token, true);
+        } else if (!b && requests.containsKey(token)) {
+            token.unlinkToDeath(requests.remove(token), 0);
+            prefs.requestSync(token, false);
+        }
+    }
+
+    /**
+     * Sends the result to the given {@link ResultReceiver}
+     *
+     * @param receiver the {@link ResultReceiver}, may be null
+     * @param e        the occurred {@link Exception} or null on success
+     */
+    private static void sendResult(ResultReceiver receiver, Exception e) {
+        if (receiver == null) {
+            return;
+        }
+
+        try {
+            Bundle b = new Bundle();
+            if (e != null) {
+                b.putString(EXTRA_ERROR, String.valueOf(e.getMessage()));
+            }
+            receiver.send(e == null ? RESULT_SUCCESS : RESULT_FAILURE, b);
+        } catch (Exception e2) {
+            Log.e(TAG, "Error while sending result to other process", e2);
+        }
+    }
+
+    /**
+     * Identifies a process requesting to keep preferences synced. The wrapped {@link IBinder} is
+     * used to get informed when the process dies.
+     */
+    static class SyncToken implements Parcelable {
+
+        /**
+         * The {@link Parcelable.Creator}
+         */
+        public static final Parcelable.Creator<SyncToken> CREATOR = new Parcelable.Creator<SyncToken>() {
+            @Override
+            public SyncToken createFromParcel(Parcel source) {
+                return new SyncToken(source.readStrongBinder());
+            }
+
+            @Override
+            public SyncToken[] newArray(int size) {
+                return new SyncToken[size];
+            }
+        };
+
+        /**
+         * The {@link IBinder} living in the requesting process
+         */
+        private final IBinder mBinder;
+
+        /**
+         * Creates a new instance
+         *
+         * @param binder the {@link IBinder} living in the requesting process
+         */
+        SyncToken(IBinder binder) {
+            mBinder = binder;
+        }
+
+        /**
+         * Returns the {@link IBinder} living in the requesting process
+         *
+         * @return the {@link IBinder}
+         */
+        IBinder getBinder() {
+            return mBinder;
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeStrongBinder(mBinder);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        throw new UnsupportedOperationException("Use call()");
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Use call()");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Use call()");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Use call()");
+    }
+}
@@ -0,0 +1,184 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts string sets to the structure stored in Firebase. Each element is stored as a child
+ * with the element as key, so single elements can be added and removed without sending the whole
+ * set. Characters not allowed in Firebase keys are escaped. Sets with elements too long for a
+ * Firebase key are stored as list like in older versions and are always pushed as a whole.
+ */
+public class StringSetCodec {
+
+    /**
+     * The characters which are escaped
+     */
+    private static final String ESCAPED = "%.$#[]/";
+
+    /**
+     * The key of the empty string
+     */
+    private static final String EMPTY = "%";
+
+    /**
+     * The max length of a Firebase key in UTF-8 bytes
+     */
+    static final int MAX_KEY_BYTES = 768;
+
+    /**
+     * The charset of Firebase keys
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Encodes the given element to a Firebase key
+     *
+     * @param element the element
+     * @return the key
+     */
+    public static String encodeElement(String element) {
+        if (element.isEmpty()) {
+            return EMPTY;
+        }
+
+        StringBuilder b = null;
+        for (int i = 0; i < element.length(); i++) {
+            char c = element.charAt(i);
+            if (ESCAPED.indexOf(c) >= 0 || c < 0x20 || c == 0x7f) {
+                if (b == null) {
+                    b = new StringBuilder(element.length() + 8).append(element, 0, i);
+                }
+                b.append(String.format(Locale.ENGLISH, "%%%02X", (int) c));
+            } else if (b != null) {
+                b.append(c);
+            }
+        }
+
+        return b == null ? element : b.toString();
+    }
+
+    /**
+     * Decodes the given Firebase key to a element
+     *
+     * @param key the key
+     * @return the element
+     */
+    public static String decodeElement(String key) {
+        if (EMPTY.equals(key)) {
+            return "";
+        }
+
+        int i = key.indexOf('%');
+        if (i < 0) {
+            return key;
+        }
+
+        StringBuilder b = new StringBuilder(key.length()).append(key, 0, i);
+        while (i < key.length()) {
+            char c = key.charAt(i);
+            if (c == '%' && i + 2 < key.length()) {
+                b.append((char) Integer.parseInt(key.substring(i + 1, i + 3), 16));
+                i += 3;
+            } else {
+                b.append(c);
+                i++;
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Checks whether the given set can be stored with one child per element, i.e. no encoded
+     * element exceeds {@link #MAX_KEY_BYTES}
+     *
+     * @param set the set
+     * @return true if all elements can be used as Firebase keys
+     */
+    public static boolean isKeyEncodable(Set<String> set) {
+        for (String s : set) {
+            // Escaping at most triples the length and a char takes at most 3 UTF-8 bytes
+            if (s.length() * 3 > MAX_KEY_BYTES && encodeElement(s).getBytes(UTF_8).length > MAX_KEY_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the given set to the structure stored in Firebase
+     *
+     * @param set the set
+     * @return the map with one child per element or a list if the set is not
+     * {@link #isKeyEncodable(Set) key encodable}
+     */
+    public static Object encode(Set<String> set) {
+        if (!isKeyEncodable(set)) {
+            return new ArrayList<>(set);
+        }
+
+        Map<String, Object> map = new HashMap<>(set.size() * 2);
+        for (String s : set) {
+            map.put(encodeElement(s), true);
+        }
+        return map;
+    }
+
+    /**
+     * Converts a value fetched from Firebase to a set
+     *
+     * @param value a {@link Map} with one child per element or a {@link List} pushed by older versions
+     * @return the set
+     */
+    public static Set<String> decode(Object value) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Set<String> set = new HashSet<>(map.size() * 2);
+            for (Object k : map.keySet()) {
+                set.add(decodeElement(k.toString()));
+            }
+            return set;
+        } else {
+            List<?> list = (List<?>) value;
+            Set<String> set = new HashSet<>(list.size() * 2);
+            for (Object o : list) {
+                set.add(String.valueOf(o));
+            }
+            return set;
+        }
+    }
+
+    /**
+     * Adds the changes between the last synced and the current set to the given values. The synced
+     * set must have been stored with one child per element. If the current set is not
+     * {@link #isKeyEncodable(Set) key encodable}, the whole set is added as list instead.
+     *
+     * @param values  the values to push
+     * @param key     the key of the set
+     * @param synced  the set as last synced
+     * @param current the current set
+     */
+    public static void diff(Map<String, Object> values, String key, Set<String> synced, Set<String> current) {
+        if (!isKeyEncodable(current)) {
+            values.put(key, encode(current));
+            return;
+        }
+
+        for (String s : current) {
+            if (!synced.contains(s)) {
+                values.put(key + "/" + encodeElement(s), true);
+            }
+        }
+        for (String s : synced) {
+            if (!current.contains(s)) {
+                values.put(key + "/" + encodeElement(s), null);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts the values of selected keys before they are pushed and decrypts them after they are
+ * pulled. Values are encrypted with AES-GCM bound to their key and stored as a string envelope, the
+ * type of the value is kept inside the envelope. A {@link Cipher} is created once per
+ * {@link SecretKey} and reused, so each value costs one cipher operation. Batches are processed
+ * holding the lock of each cipher only once.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ValueEncryption {
+
+    /**
+     * The log tag
+     */
+    private static final String TAG = "SharedFirebasePrefs";
+
+    /**
+     * The prefix of encrypted values
+     */
+    public static final String ENVELOPE_PREFIX = "enc1:";
+
+    /**
+     * The transformation used
+     */
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The length of the IV in bytes
+     */
+    private static final int IV_LENGTH = 12;
+
+    /**
+     * The length of the authentication tag in bits
+     */
+    private static final int TAG_LENGTH = 128;
+
+    /**
+     * The charset used for plain texts
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The {@link SecureRandom} used to create IVs
+     */
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * The {@link CipherContext}s of the single encrypted keys
+     */
+    private final Map<String, CipherContext> mKeys = new HashMap<>();
+
+    /**
+     * The {@link CipherContext}s of the encrypted key prefixes
+     */
+    private final Map<String, CipherContext> mPrefixes = new LinkedHashMap<>();
+
+    /**
+     * The {@link CipherContext}s mapped by {@link SecretKey}, so keys sharing a
+     * {@link SecretKey} share the cipher
+     */
+    private final Map<SecretKey, CipherContext> mContexts = new HashMap<>();
+
+    /**
+     * Encrypts the values of the given keys with the given {@link SecretKey}
+     *
+     * @param secretKey a AES {@link SecretKey}
+     * @param keys      the keys to encrypt
+     * @throws GeneralSecurityException if the {@link SecretKey} can not be used
+     */
+    public synchronized void addKeys(SecretKey secretKey, String... keys) throws GeneralSecurityException {
+        CipherContext c = getContext(secretKey);
+        for (String k : keys) {
+            mKeys.put(k, c);
+        }
+    }
+
+    /**
+     * Encrypts the values of all keys starting with the given prefix with the given {@link SecretKey}
+     *
+     * @param secretKey a AES {@link SecretKey}
+     * @param prefix    the prefix
+     * @throws GeneralSecurityException if the {@link SecretKey} can not be used
+     */
+    public synchronized void addPrefix(SecretKey secretKey, String prefix) throws GeneralSecurityException {
+        mPrefixes.put(prefix, getContext(secretKey));
+    }
+
+    /**
+     * Returns the {@link CipherContext} for the given {@link SecretKey}, creates it if needed
+     *
+     * @param secretKey the {@link SecretKey}
+     * @return the {@link CipherContext}
+     * @throws GeneralSecurityException if the {@link SecretKey} can not be used
+     */
+    private CipherContext getContext(SecretKey secretKey) throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new UnsupportedOperationException("Encryption requires API level 19");
+        }
+
+        CipherContext c = mContexts.get(secretKey);
+        if (c == null) {
+            c = new CipherContext(secretKey);
+            mContexts.put(secretKey, c);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the {@link CipherContext} used for the given key
+     *
+     * @param key the key
+     * @return the {@link CipherContext} or null if the key is not encrypted
+     */
+    private synchronized CipherContext getContextForKey(String key) {
+        CipherContext c = mKeys.get(key);
+        if (c != null) {
+            return c;
+        }
+
+        for (Map.Entry<String, CipherContext> e : mPrefixes.entrySet()) {
+            if (key.startsWith(e.getKey())) {
+                return e.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether any key is encrypted
+     *
+     * @return true if no key is encrypted
+     */
+    public synchronized boolean isEmpty() {
+        return mKeys.isEmpty() && mPrefixes.isEmpty();
+    }
+
+    /**
+     * Encrypts the values of all encrypted keys in the given map. Null values are not encrypted.
+     *
+     * @param values the local values
+     * @return a map with the encrypted values, all other values are unchanged
+     * @throws GeneralSecurityException if a value can not be encrypted
+     */
+    public Map<String, Object> encryptAll(Map<String, Object> values) throws GeneralSecurityException {
+        if (isEmpty()) {
+            return values;
+        }
+
+        Map<String, Object> result = new HashMap<>(values);
+        for (Map.Entry<CipherContext, List<String>> e : groupByContext(values).entrySet()) {
+            synchronized (e.getKey()) {
+                for (String k : e.getValue()) {
+                    result.put(k, e.getKey().encrypt(k, values.get(k)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts all encrypted values in the given map. Values stored unencrypted are left
+     * unchanged, e.g. values pushed before the key was encrypted. Values which can not be
+     * decrypted, e.g. because they were encrypted with another key, are logged and left out of the
+     * result, so a single bad value does not fail the whole batch.
+     *
+     * @param values the values fetched from Firebase
+     * @param failed the collection to which the keys of all values which could not be decrypted are added
+     * @return a map with the decrypted values, string sets are returned as {@link List}
+     */
+    public Map<String, Object> decryptAll(Map<String, Object> values, Collection<String> failed) {
+        if (isEmpty()) {
+            return values;
+        }
+
+        Map<String, Object> result = new HashMap<>(values);
+        for (Map.Entry<CipherContext, List<String>> e : groupByContext(values).entrySet()) {
+            synchronized (e.getKey()) {
+                for (String k : e.getValue()) {
+                    Object v = values.get(k);
+                    if (v instanceof String && ((String) v).startsWith(ENVELOPE_PREFIX)) {
+                        try {
+                            result.put(k, e.getKey().decrypt(k, (String) v));
+                        } catch (Exception ex) {
+                            Log.e(TAG, "Unable to decrypt value of " + k + ", keeping the local value", ex);
+                            result.remove(k);
+                            failed.add(k);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the encrypted keys with non null values by their {@link CipherContext}
+     *
+     * @param values the values
+     * @return the keys mapped by {@link CipherContext}
+     */
+    private Map<CipherContext, List<String>> groupByContext(Map<String, Object> values) {
+        Map<CipherContext, List<String>> groups = new HashMap<>();
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            CipherContext c = e.getValue() == null ? null : getContextForKey(e.getKey());
+            if (c != null) {
+                List<String> keys = groups.get(c);
+                if (keys == null) {
+                    keys = new ArrayList<>();
+                    groups.put(c, keys);
+                }
+                keys.add(e.getKey());
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Serializes the given value including its type
+     *
+     * @param value the value
+     * @return the serialized value
+     */
+    private static String serialize(Object value) {
+        if (value instanceof String) {
+            return "s" + value;
+        } else if (value instanceof Integer) {
+            return "i" + value;
+        } else if (value instanceof Long) {
+            return "l" + value;
+        } else if (value instanceof Float) {
+            return "f" + value;
+        } else if (value instanceof Boolean) {
+            return "b" + value;
+        } else if (value instanceof Collection) {
+            return "S" + new JSONArray((Collection<?>) value).toString();
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Deserializes the given value
+     *
+     * @param s the serialized value
+     * @return the value
+     * @throws GeneralSecurityException if the value is malformed
+     */
+    private static Object deserialize(String s) throws GeneralSecurityException {
+        String payload = s.substring(1);
+        switch (s.charAt(0)) {
+            case 's':
+                return payload;
+            case 'i':
+                return Integer.parseInt(payload);
+            case 'l':
+                return Long.parseLong(payload);
+            case 'f':
+                return Float.parseFloat(payload);
+            case 'b':
+                return Boolean.parseBoolean(payload);
+            case 'S':
+                try {
+                    JSONArray array = new JSONArray(payload);
+                    List<String> list = new ArrayList<>(array.length());
+                    for (int i = 0; i < array.length(); i++) {
+                        list.add(array.getString(i));
+                    }
+                    return list;
+                } catch (JSONException e) {
+                    throw new GeneralSecurityException("Malformed string set", e);
+                }
+            default:
+                throw new GeneralSecurityException("Unknown type " + s.charAt(0));
+        }
+    }
+
+    /**
+     * Holds a {@link SecretKey} and the {@link Cipher} used with it. Not thread safe, callers
+     * synchronize on the instance.
+     */
+    private static class CipherContext {
+
+        /**
+         * The {@link SecretKey}
+         */
+        private final SecretKey mSecretKey;
+
+        /**
+         * The {@link Cipher}, initialized again for every value with a new IV
+         */
+        private final Cipher mCipher;
+
+        /**
+         * Creates a new instance
+         *
+         * @param secretKey the {@link SecretKey}
+         * @throws GeneralSecurityException if the {@link Cipher} can not be created
+         */
+        private CipherContext(SecretKey secretKey) throws GeneralSecurityException {
+            mSecretKey = secretKey;
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+
+            // Fail early if the key can not be used
+            mCipher.init(Cipher.ENCRYPT_MODE, mSecretKey, new GCMParameterSpec(TAG_LENGTH, new byte[IV_LENGTH]));
+        }
+
+        /**
+         * Encrypts the given value
+         *
+         * @param key   the key of the value, authenticated with the value
+         * @param value the value
+         * @return the envelope
+         * @throws GeneralSecurityException if the value can not be encrypted
+         */
+        private String encrypt(String key, Object value) throws GeneralSecurityException {
+            byte[] iv = new byte[IV_LENGTH];
+            sRandom.nextBytes(iv);
+            mCipher.init(Cipher.ENCRYPT_MODE, mSecretKey, new GCMParameterSpec(TAG_LENGTH, iv));
+            mCipher.updateAAD(key.getBytes(UTF_8));
+            byte[] plain = serialize(value).getBytes(UTF_8);
+
+            byte[] envelope = new byte[IV_LENGTH + mCipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, envelope, 0, IV_LENGTH);
+            int length = mCipher.doFinal(plain, 0, plain.length, envelope, IV_LENGTH);
+            return ENVELOPE_PREFIX + Base64.encodeToString(envelope, 0, IV_LENGTH + length, Base64.NO_WRAP);
+        }
+
+        /**
+         * Decrypts the given envelope
+         *
+         * @param key      the key of the value
+         * @param envelope the envelope
+         * @return the value
+         * @throws GeneralSecurityException if the envelope can not be decrypted
+         */
+        private Object decrypt(String key, String envelope) throws GeneralSecurityException {
+            byte[] bytes;
+            try {
+                bytes = Base64.decode(envelope.substring(ENVELOPE_PREFIX.length()), Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Malformed envelope", e);
+            }
+
+            if (bytes.length <= IV_LENGTH) {
+                throw new GeneralSecurityException("Malformed envelope");
+            }
+
+            mCipher.init(Cipher.DECRYPT_MODE, mSecretKey, new GCMParameterSpec(TAG_LENGTH, bytes, 0, IV_LENGTH));
+            mCipher.updateAAD(key.getBytes(UTF_8));
+            byte[] plain = mCipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH);
+            return deserialize(new String(plain, UTF_8));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ChangeStream}. The {@link Handler} does nothing in unit tests, events are
+ * delivered by running the {@link ChangeStream.Subscription} manually.
+ */
+public class ChangeStreamTest {
+
+    /**
+     * The stream under test
+     */
+    private ChangeStream mStream;
+
+    /**
+     * The delivered events
+     */
+    private List<ChangeStream.Event> mEvents;
+
+    /**
+     * The listener recording the delivered events
+     */
+    private SharedFirebasePreferences.OnPreferencesChangedListener mListener;
+
+    /**
+     * Creates the stream and the listener
+     */
+    @Before
+    public void setUp() {
+        mStream = new ChangeStream(null);
+        mEvents = new ArrayList<>();
+        mListener = new SharedFirebasePreferences.OnPreferencesChangedListener() {
+            @Override
+            public void onPreferencesChanged(SharedFirebasePreferences preferences, ChangeStream.Event event) {
+                mEvents.add(event);
+            }
+        };
+    }
+
+    /**
+     * Tests that events waiting for delivery are merged into one event
+     */
+    @Test
+    public void conflation() {
+        ChangeStream.Subscription s = mStream.subscribe(ChangeStream.allKeys(), mListener, new Handler());
+        mStream.emit(Collections.singleton("a"), ChangeStream.Origin.LOCAL);
+        mStream.emit(Arrays.asList("a", "b"), ChangeStream.Origin.SYNC);
+        s.run();
+
+        assertEquals(1, mEvents.size());
+        ChangeStream.Event e = mEvents.get(0);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), e.getKeys());
+        assertEquals(EnumSet.of(ChangeStream.Origin.LOCAL, ChangeStream.Origin.SYNC), e.getOrigins());
+        assertTrue(e.isFrom(ChangeStream.Origin.SYNC));
+        assertFalse(e.isFrom(ChangeStream.Origin.PROCESS));
+        assertEquals(1, e.getSyncVersion());
+
+        // Nothing is waiting anymore
+        s.run();
+        assertEquals(1, mEvents.size());
+    }
+
+    /**
+     * Tests that only local changes leave the sync version unchanged
+     */
+    @Test
+    public void syncVersion() {
+        mStream.emit(Collections.singleton("a"), ChangeStream.Origin.LOCAL);
+        assertEquals(0, mStream.getSyncVersion());
+        mStream.emit(Collections.singleton("a"), ChangeStream.Origin.SYNC);
+        mStream.emit(Collections.singleton("a"), ChangeStream.Origin.PROCESS);
+        assertEquals(2, mStream.getSyncVersion());
+    }
+
+    /**
+     * Tests that subscriptions only receive the keys accepted by their filter
+     */
+    @Test
+    public void filter() {
+        ChangeStream.Subscription keys = mStream.subscribe(ChangeStream.keys("a", "c"), mListener, new Handler());
+        mStream.emit(Arrays.asList("a", "b"), ChangeStream.Origin.LOCAL);
+        keys.run();
+        assertEquals(Collections.singleton("a"), mEvents.get(0).getKeys());
+        keys.unsubscribe();
+
+        ChangeStream.Subscription prefix = mStream.subscribe(ChangeStream.prefix("user_"), mListener, new Handler());
+        mStream.emit(Arrays.asList("user_name", "theme"), ChangeStream.Origin.LOCAL);
+        prefix.run();
+        assertEquals(Collections.singleton("user_name"), mEvents.get(1).getKeys());
+
+        // Events without accepted keys are not delivered
+        mStream.emit(Collections.singleton("theme"), ChangeStream.Origin.LOCAL);
+        prefix.run();
+        assertEquals(2, mEvents.size());
+    }
+
+    /**
+     * Tests that cancelled subscriptions receive no events, also not the ones already waiting
+     */
+    @Test
+    public void unsubscribe() {
+        ChangeStream.Subscription s = mStream.subscribe(ChangeStream.allKeys(), mListener, new Handler());
+        mStream.emit(Collections.singleton("a"), ChangeStream.Origin.LOCAL);
+        s.unsubscribe();
+        mStream.emit(Collections.singleton("b"), ChangeStream.Origin.LOCAL);
+        s.run();
+        assertTrue(mEvents.isEmpty());
+    }
+
+    /**
+     * Tests that the origin of the last change of each key is tracked
+     */
+    @Test
+    public void keysChangedBy() {
+        mStream.emit(Arrays.asList("a", "b"), ChangeStream.Origin.SYNC);
+        mStream.emit(Collections.singleton("b"), ChangeStream.Origin.LOCAL);
+        assertEquals(Collections.singleton("a"), mStream.getKeysChangedBy(ChangeStream.Origin.SYNC));
+        assertEquals(Collections.singleton("b"), mStream.getKeysChangedBy(ChangeStream.Origin.LOCAL));
+    }
+
+    /**
+     * Tests that numbers are compared by value
+     */
+    @Test
+    public void sameValue() {
+        assertTrue(ChangeStream.isSameValue(5, 5L));
+        assertTrue(ChangeStream.isSameValue(0.5f, 0.5d));
+        assertTrue(ChangeStream.isSameValue(0.1f, (double) 0.1f));
+        assertFalse(ChangeStream.isSameValue(1.5f, 2.5d));
+        assertFalse(ChangeStream.isSameValue(Long.MAX_VALUE, Long.MAX_VALUE - 1));
+        assertTrue(ChangeStream.isSameValue(null, null));
+        assertFalse(ChangeStream.isSameValue(null, "a"));
+        assertFalse(ChangeStream.isSameValue("5", 5L));
+        assertTrue(ChangeStream.isSameValue("a", "a"));
+    }
+}
@@ -0,0 +1,122 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PreferencesSummary}
+ */
+public class PreferencesSummaryTest {
+
+    /**
+     * Tests that buckets are stable across devices and versions. The expected values follow from
+     * the specified {@link String#hashCode()}, changing them breaks partial pulls of all devices.
+     */
+    @Test
+    public void bucketStable() {
+        assertEquals(0, PreferencesSummary.getBucket(""));
+        assertEquals(1, PreferencesSummary.getBucket("a"));
+        assertEquals(0, PreferencesSummary.getBucket("key_0"));
+        assertEquals(1, PreferencesSummary.getBucket("key_1"));
+        assertEquals(6, PreferencesSummary.getBucket("username"));
+    }
+
+    /**
+     * Tests that all buckets are in range, also for keys with negative hash codes
+     */
+    @Test
+    public void bucketInRange() {
+        for (int i = 0; i < 10000; i++) {
+            int bucket = PreferencesSummary.getBucket("key_" + i * 7919);
+            assertTrue(bucket >= 0 && bucket < PreferencesSummary.BUCKETS);
+        }
+        assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+        assertEquals(0, PreferencesSummary.getBucket("polygenelubricants"));
+    }
+
+    /**
+     * Tests the reserved keys
+     */
+    @Test
+    public void reservedKeys() {
+        assertTrue(PreferencesSummary.isReservedKey(PreferencesSummary.SUMMARY_KEY));
+        assertTrue(PreferencesSummary.isReservedKey(PreferencesSummary.INDEX_KEY));
+        assertFalse(PreferencesSummary.isReservedKey("key_0"));
+    }
+
+    /**
+     * Tests that a push adds only the index entries of the pushed keys and one token per touched
+     * bucket
+     */
+    @Test
+    public void pushValues() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("key_0", 1L);
+        values.put("key_1", 2L);
+        values.put("a", "x");
+        PreferencesSummary.addPushValues(values, Arrays.asList("key_0", "key_1", "a"));
+
+        assertEquals(true, values.get("__index/0/key_0"));
+        assertEquals(true, values.get("__index/1/key_1"));
+        assertEquals(true, values.get("__index/1/a"));
+        assertNotNull(values.get("__summary/0"));
+        assertNotNull(values.get("__summary/1"));
+        assertEquals(values.get("__summary/0"), values.get("__summary/1"));
+
+        Set<String> expected = new HashSet<>(Arrays.asList("key_0", "key_1", "a",
+                "__index/0/key_0", "__index/1/key_1", "__index/1/a", "__summary/0", "__summary/1"));
+        assertEquals(expected, values.keySet());
+    }
+
+    /**
+     * Tests that every push writes new tokens
+     */
+    @Test
+    public void pushTokensChange() {
+        Map<String, Object> first = new HashMap<>();
+        Map<String, Object> second = new HashMap<>();
+        PreferencesSummary.addPushValues(first, Collections.singleton("a"));
+        PreferencesSummary.addPushValues(second, Collections.singleton("a"));
+        assertNotEquals(first.get("__summary/1"), second.get("__summary/1"));
+    }
+
+    /**
+     * Tests that only buckets with tokens differing from the synced tokens are changed
+     */
+    @Test
+    public void changedBuckets() {
+        PreferencesSummary summary = new PreferencesSummary();
+        String[] remote = new String[PreferencesSummary.BUCKETS];
+        assertTrue(summary.getChangedBuckets(remote).isEmpty());
+
+        remote[3] = "t1";
+        remote[5] = "t2";
+        assertEquals(Arrays.asList(3, 5), summary.getChangedBuckets(remote));
+
+        summary.setSynced(3, "t1");
+        assertEquals("t1", summary.getSynced(3));
+        assertEquals(Collections.singletonList(5), summary.getChangedBuckets(remote));
+
+        summary.setSynced(5, "t2");
+        assertTrue(summary.getChangedBuckets(remote).isEmpty());
+
+        remote[3] = null;
+        List<Integer> changed = summary.getChangedBuckets(remote);
+        assertEquals(Collections.singletonList(3), changed);
+        assertNull(summary.getSynced(0));
+    }
+}
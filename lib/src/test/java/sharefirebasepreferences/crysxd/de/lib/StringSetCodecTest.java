@@ -0,0 +1,174 @@
+package sharefirebasepreferences.crysxd.de.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StringSetCodec}
+ */
+public class StringSetCodecTest {
+
+    /**
+     * Elements which need escaping or are otherwise special
+     */
+    private static final String[] ELEMENTS = {
+            "", "%", "%%", "%2E", "plain", ".", "$", "#", "[", "]", "/", ".$#[]/",
+            "a/b.c", "tab\there", "new\nline", "\u0000", "\u007f", "\u00fcmlaut", "\u6f22\u5b57", "emoji \ud83d\ude00"
+    };
+
+    /**
+     * Tests that all elements survive encoding and decoding
+     */
+    @Test
+    public void elementRoundTrip() {
+        for (String element : ELEMENTS) {
+            assertEquals(element, StringSetCodec.decodeElement(StringSetCodec.encodeElement(element)));
+        }
+    }
+
+    /**
+     * Tests that encoded elements are valid Firebase keys
+     */
+    @Test
+    public void encodedElementIsValidKey() {
+        for (String element : ELEMENTS) {
+            String key = StringSetCodec.encodeElement(element);
+            assertFalse(key.isEmpty());
+            for (char c : key.toCharArray()) {
+                assertTrue(key, ".$#[]/".indexOf(c) < 0 && c >= 0x20 && c != 0x7f);
+            }
+        }
+    }
+
+    /**
+     * Tests that distinct elements are encoded to distinct keys
+     */
+    @Test
+    public void encodingIsInjective() {
+        Set<String> keys = new HashSet<>();
+        for (String element : ELEMENTS) {
+            keys.add(StringSetCodec.encodeElement(element));
+        }
+        assertEquals(ELEMENTS.length, keys.size());
+    }
+
+    /**
+     * Tests that unescaped elements are not changed
+     */
+    @Test
+    public void plainElementUnchanged() {
+        assertEquals("plain", StringSetCodec.encodeElement("plain"));
+    }
+
+    /**
+     * Tests that a set survives encoding and decoding
+     */
+    @Test
+    public void setRoundTrip() {
+        Set<String> set = new HashSet<>(Arrays.asList(ELEMENTS));
+        assertEquals(set, StringSetCodec.decode(StringSetCodec.encode(set)));
+    }
+
+    /**
+     * Tests that sets pushed as list by older versions are decoded
+     */
+    @Test
+    public void decodeList() {
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), StringSetCodec.decode(Arrays.asList("a", "b", "a")));
+    }
+
+    /**
+     * Tests that the diff contains only added and removed elements
+     */
+    @Test
+    public void diff() {
+        Set<String> synced = new HashSet<>(Arrays.asList("kept", "removed", "a.b"));
+        Set<String> current = new HashSet<>(Arrays.asList("kept", "added", "c/d"));
+
+        Map<String, Object> values = new HashMap<>();
+        StringSetCodec.diff(values, "set", synced, current);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("set/added", true);
+        expected.put("set/c%2Fd", true);
+        expected.put("set/removed", null);
+        expected.put("set/a%2Eb", null);
+        assertEquals(expected, values);
+    }
+
+    /**
+     * Tests the limit of the length of elements stored as keys
+     */
+    @Test
+    public void keyLengthLimit() {
+        assertTrue(StringSetCodec.isKeyEncodable(Collections.singleton(repeat("a", StringSetCodec.MAX_KEY_BYTES))));
+        assertFalse(StringSetCodec.isKeyEncodable(Collections.singleton(repeat("a", StringSetCodec.MAX_KEY_BYTES + 1))));
+
+        // Escaping triples the length, non ASCII characters take multiple bytes
+        assertFalse(StringSetCodec.isKeyEncodable(Collections.singleton(repeat(".", 300))));
+        assertFalse(StringSetCodec.isKeyEncodable(Collections.singleton(repeat("\u6f22", 300))));
+        assertTrue(StringSetCodec.isKeyEncodable(Collections.singleton(repeat("\u6f22", 256))));
+    }
+
+    /**
+     * Tests that sets with too long elements are encoded as list and survive decoding
+     */
+    @Test
+    public void longElementAsList() {
+        Set<String> set = new HashSet<>(Arrays.asList("short", repeat("/", 1000)));
+        Object encoded = StringSetCodec.encode(set);
+        assertTrue(encoded instanceof List);
+        assertEquals(set, StringSetCodec.decode(encoded));
+    }
+
+    /**
+     * Tests that a diff to a set with too long elements replaces the whole set with a list
+     */
+    @Test
+    public void diffLongElement() {
+        Set<String> synced = new HashSet<>(Arrays.asList("a", "b"));
+        Set<String> current = new HashSet<>(Arrays.asList("a", repeat("x", 1000)));
+
+        Map<String, Object> values = new HashMap<>();
+        StringSetCodec.diff(values, "set", synced, current);
+        assertEquals(Collections.singleton("set"), values.keySet());
+        assertEquals(current, StringSetCodec.decode(values.get("set")));
+    }
+
+    /**
+     * Tests that equal sets produce no diff
+     */
+    @Test
+    public void diffUnchanged() {
+        Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+        Map<String, Object> values = new HashMap<>();
+        StringSetCodec.diff(values, "set", set, new HashSet<>(set));
+        assertTrue(values.isEmpty());
+    }
+
+    /**
+     * Repeats the given string
+     *
+     * @param s     the string
+     * @param count the number of repetitions
+     * @return the repeated string
+     */
+    private static String repeat(String s, int count) {
+        StringBuilder b = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,248 @@
+package sharefirebasepreferences.crysxd.de.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates thousands of devices running {@code SharedFirebasePreferences} against a
+ * {@link LocalDatabase} and reports throughput, tail latency and bytes per operation.
+ * <p>
+ * Usage: {@code ./gradlew :loadtest:run -PloadtestArgs="--clients=5000 --duration=60"}
+ */
+public class LoadTest {
+
+    /**
+     * The placeholder in the path pattern for the preferences' names
+     */
+    private static final String NAME_PLACEHOLDER = "$name";
+
+    /**
+     * The placeholder in the path pattern for the user's id
+     */
+    private static final String UID_PLACEHOLDER = "$uid";
+
+    /**
+     * Runs the load test
+     *
+     * @param args the arguments, see {@link Config#parse(String[])}
+     * @throws InterruptedException if interrupted while waiting for the load test to finish
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Config config = Config.parse(args);
+        LocalDatabase database = new LocalDatabase(config.threads);
+        Stats stats = new Stats();
+
+        // Create the clients, all devices of a user share the same root
+        final List<SimulatedClient> clients = new ArrayList<>();
+        for (int i = 0; i < config.clients; i++) {
+            String uid = String.format(Locale.ENGLISH, "user%06d", i / config.devicesPerUser);
+            SimulatedClient c = new SimulatedClient(database, stats, getRoot(config.pathPattern, uid, config.name), config, config.seed + i);
+            c.seed();
+            clients.add(c);
+        }
+
+        System.out.println(String.format(Locale.ENGLISH, "Running %d clients (%d devices per user) on %d threads for %ds, %s push",
+                config.clients, config.devicesPerUser, config.threads, config.durationSeconds, config.deltaPush ? "delta" : "full"));
+
+        // Every client schedules its next operation after finishing the last one
+        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(config.threads);
+        for (final SimulatedClient c : clients) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    c.step();
+                    if (!executor.isShutdown()) {
+                        executor.schedule(this, c.nextDelay(), TimeUnit.MILLISECONDS);
+                    }
+                }
+            }, c.nextDelay(), TimeUnit.MILLISECONDS);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.durationSeconds));
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        long duration = System.nanoTime() - start;
+
+        for (SimulatedClient c : clients) {
+            c.stop();
+        }
+        database.shutdown(1, TimeUnit.MINUTES);
+
+        stats.print(System.out, duration);
+    }
+
+    /**
+     * Returns the path to the root of the preferences like {@code SharedFirebasePreferences}
+     *
+     * @param pattern the path pattern
+     * @param uid     the user's id
+     * @param name    the name of the preferences
+     * @return the path
+     */
+    private static String getRoot(String pattern, String uid, String name) {
+        return pattern.replace(UID_PLACEHOLDER, uid).replace(NAME_PLACEHOLDER, name)
+                .replace('.', '-').replace('#', '-').replace('$', '-').replace('[', '-').replace(']', '-');
+    }
+
+    /**
+     * The configuration of a load test
+     */
+    public static class Config {
+
+        /**
+         * The number of simulated clients
+         */
+        public int clients = 2000;
+
+        /**
+         * The number of clients sharing the same user and therefore the same root
+         */
+        public int devicesPerUser = 2;
+
+        /**
+         * The number of threads executing the clients' operations
+         */
+        public int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+        /**
+         * The duration of the load test in seconds
+         */
+        public int durationSeconds = 30;
+
+        /**
+         * The mean time between two operations of a client in milliseconds
+         */
+        public int thinkMillis = 100;
+
+        /**
+         * The number of keys of each client's preferences
+         */
+        public int keys = 50;
+
+        /**
+         * The number of elements of string sets
+         */
+        public int setSize = 20;
+
+        /**
+         * The weight of edit operations in the workload mix
+         */
+        public int editWeight = 60;
+
+        /**
+         * The weight of pull operations in the workload mix
+         */
+        public int pullWeight = 30;
+
+        /**
+         * The weight of keepSynced toggles in the workload mix
+         */
+        public int keepSyncedWeight = 10;
+
+        /**
+         * True to push only the changed key on edit like the push scheduled by
+         * {@code SharedFirebasePreferences.Editor#apply()}, false to push all keys like
+         * {@code SharedFirebasePreferences#push()}
+         */
+        public boolean deltaPush = true;
+
+        /**
+         * The path pattern, see {@code SharedFirebasePreferences#setPathPattern(String)}
+         */
+        public String pathPattern = "/shared_prefs/" + UID_PLACEHOLDER + "/" + NAME_PLACEHOLDER;
+
+        /**
+         * The name of the preferences
+         */
+        public String name = "app_settings";
+
+        /**
+         * The seed for the workload
+         */
+        public long seed = 0;
+
+        /**
+         * Parses the given arguments in the form {@code --name=value}. Supported are
+         * {@code --clients}, {@code --devices-per-user}, {@code --threads}, {@code --duration},
+         * {@code --think-ms}, {@code --keys}, {@code --set-size}, {@code --mix=edit:pull:keepSynced},
+         * {@code --push=full|delta}, {@code --path-pattern}, {@code --name} and {@code --seed}.
+         *
+         * @param args the arguments
+         * @return the parsed {@link Config}
+         */
+        public static Config parse(String[] args) {
+            Config c = new Config();
+            for (String arg : args) {
+                if (arg.isEmpty()) {
+                    continue;
+                }
+
+                int i = arg.indexOf('=');
+                if (!arg.startsWith("--") || i < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+
+                String name = arg.substring(2, i);
+                String value = arg.substring(i + 1);
+                switch (name) {
+                    case "clients":
+                        c.clients = Integer.parseInt(value);
+                        break;
+                    case "devices-per-user":
+                        c.devicesPerUser = Integer.parseInt(value);
+                        break;
+                    case "threads":
+                        c.threads = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        c.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "think-ms":
+                        c.thinkMillis = Integer.parseInt(value);
+                        break;
+                    case "keys":
+                        c.keys = Integer.parseInt(value);
+                        break;
+                    case "set-size":
+                        c.setSize = Integer.parseInt(value);
+                        break;
+                    case "mix":
+                        String[] parts = value.split(":");
+                        c.editWeight = Integer.parseInt(parts[0]);
+                        c.pullWeight = Integer.parseInt(parts[1]);
+                        c.keepSyncedWeight = Integer.parseInt(parts[2]);
+                        break;
+                    case "push":
+                        if (!"delta".equals(value) && !"full".equals(value)) {
+                            throw new IllegalArgumentException("Expected --push=delta or --push=full but got " + arg);
+                        }
+                        c.deltaPush = "delta".equals(value);
+                        break;
+                    case "path-pattern":
+                        c.pathPattern = value;
+                        break;
+                    case "name":
+                        c.name = value;
+                        break;
+                    case "seed":
+                        c.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+
+            if (c.clients < 1 || c.devicesPerUser < 1 || c.threads < 1 || c.keys < 1
+                    || c.editWeight + c.pullWeight + c.keepSyncedWeight < 1) {
+                throw new IllegalArgumentException("Invalid configuration");
+            }
+
+            return c;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package sharefirebasepreferences.crysxd.de.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A in-process stand-in for the Firebase Realtime Database. Data is stored as a tree of
+ * {@link Map}s, {@link List}s and primitive values just like the database's JSON tree. The real
+ * database processes the operations of one database instance sequentially, so all operations are
+ * serialized on a single lock to reproduce the contention of many clients sharing one instance.
+ * Value events are delivered asynchronously on delivery threads like the real database delivers
+ * them on the clients' event threads. All events of one listener are delivered in order on the
+ * same thread.
+ */
+public class LocalDatabase {
+
+    /**
+     * The root of the tree
+     */
+    private final Map<String, Object> mRoot = new HashMap<>();
+
+    /**
+     * The listeners for value events mapped by their path
+     */
+    private final Map<String, List<ValueListener>> mListeners = new HashMap<>();
+
+    /**
+     * The single threaded executors delivering the value events, each listener is always served
+     * by the same executor
+     */
+    private final ExecutorService[] mDeliveryExecutors;
+
+    /**
+     * Creates a new instance
+     *
+     * @param deliveryThreads the number of threads delivering value events, at least 1
+     */
+    public LocalDatabase(int deliveryThreads) {
+        mDeliveryExecutors = new ExecutorService[deliveryThreads];
+        for (int i = 0; i < deliveryThreads; i++) {
+            mDeliveryExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LocalDatabase-delivery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes all given values to the children of the given path. Keys of the values may be paths
+     * relative to the given path, a null value deletes the child. This mimics
+     * {@code DatabaseReference#updateChildren(Map)}.
+     *
+     * Returns once the values are written, the affected listeners are informed asynchronously.
+     *
+     * @param path   the path to update
+     * @param values the values to write
+     * @return the number of bytes sent to the database
+     */
+    public long updateChildren(String path, Map<String, Object> values) {
+        List<Notification> notifications;
+        synchronized (this) {
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                set(join(path, e.getKey()), copy(e.getValue()));
+            }
+
+            notifications = collectNotifications(path);
+        }
+
+        // Deliver outside of the lock and without blocking the writer, the real database also
+        // delivers events asynchronously
+        for (Notification n : notifications) {
+            deliver(n);
+        }
+
+        return sizeOf(values);
+    }
+
+    /**
+     * Returns a copy of the value at the given path. This mimics
+     * {@code DatabaseReference#addListenerForSingleValueEvent(ValueEventListener)}.
+     *
+     * @param path the path
+     * @return the value or null if no value exists
+     */
+    public synchronized Object get(String path) {
+        return copy(find(path));
+    }
+
+    /**
+     * Adds a listener which is informed about all changes at the given path. The current value is
+     * delivered to the listener asynchronously right away. This mimics
+     * {@code DatabaseReference#addValueEventListener(ValueEventListener)}.
+     *
+     * @param path     the path
+     * @param listener the {@link ValueListener}
+     */
+    public void addValueListener(String path, ValueListener listener) {
+        Object value;
+        synchronized (this) {
+            List<ValueListener> listeners = mListeners.get(path);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+                mListeners.put(path, listeners);
+            }
+            listeners.add(listener);
+            value = copy(find(path));
+        }
+
+        deliver(new Notification(listener, value, sizeOf(value)));
+    }
+
+    /**
+     * Removes the given listener from the given path
+     *
+     * @param path     the path
+     * @param listener the {@link ValueListener}
+     */
+    public synchronized void removeValueListener(String path, ValueListener listener) {
+        List<ValueListener> listeners = mListeners.get(path);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                mListeners.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Stops delivering value events after all pending events were delivered
+     *
+     * @param timeout the max time to wait for pending events
+     * @param unit    the {@link TimeUnit} of the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ExecutorService e : mDeliveryExecutors) {
+            e.shutdown();
+        }
+        for (ExecutorService e : mDeliveryExecutors) {
+            e.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Delivers the given notification on the delivery executor of its listener
+     *
+     * @param notification the {@link Notification}
+     */
+    private void deliver(final Notification notification) {
+        int i = (System.identityHashCode(notification.mListener) & 0x7fffffff) % mDeliveryExecutors.length;
+        mDeliveryExecutors[i].execute(new Runnable() {
+            @Override
+            public void run() {
+                notification.deliver();
+            }
+        });
+    }
+
+    /**
+     * Estimates the size of the given value in bytes when serialized as JSON
+     *
+     * @param value the value
+     * @return the estimated size
+     */
+    public static long sizeOf(Object value) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof String) {
+            return ((String) value).length() + 2;
+        } else if (value instanceof Map) {
+            long size = 2;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                size += e.getKey().toString().length() + 4 + sizeOf(e.getValue());
+            }
+            return size;
+        } else if (value instanceof List) {
+            long size = 2;
+            for (Object o : (List<?>) value) {
+                size += sizeOf(o) + 1;
+            }
+            return size;
+        } else {
+            return value.toString().length();
+        }
+    }
+
+    /**
+     * Collects the notifications for all listeners affected by a change at the given path.
+     * Must be called while holding the lock.
+     *
+     * @param path the changed path
+     * @return the notifications to deliver
+     */
+    private List<Notification> collectNotifications(String path) {
+        List<Notification> notifications = new ArrayList<>();
+        if (mListeners.isEmpty()) {
+            return notifications;
+        }
+
+        // Listeners on the changed path itself and on all its parents are affected
+        String p = path;
+        while (true) {
+            List<ValueListener> listeners = mListeners.get(p);
+            if (listeners != null) {
+                Object value = copy(find(p));
+                long size = sizeOf(value);
+                for (ValueListener l : listeners) {
+                    notifications.add(new Notification(l, value, size));
+                }
+            }
+
+            int i = p.lastIndexOf('/');
+            if (i <= 0) {
+                break;
+            }
+            p = p.substring(0, i);
+        }
+
+        return notifications;
+    }
+
+    /**
+     * Returns the value at the given path without copying it
+     *
+     * @param path the path
+     * @return the value or null
+     */
+    private Object find(String path) {
+        Object node = mRoot;
+        for (String segment : split(path)) {
+            if (!(node instanceof Map)) {
+                return null;
+            }
+            node = ((Map<?, ?>) node).get(segment);
+        }
+        return node;
+    }
+
+    /**
+     * Sets the value at the given path, creating or pruning parent nodes as needed
+     *
+     * @param path  the path
+     * @param value the value or null to delete
+     */
+    @SuppressWarnings("unchecked")
+    private void set(String path, Object value) {
+        String[] segments = split(path);
+        List<Map<String, Object>> parents = new ArrayList<>();
+        Map<String, Object> node = mRoot;
+        for (int i = 0; i < segments.length - 1; i++) {
+            parents.add(node);
+            Object child = node.get(segments[i]);
+            if (!(child instanceof Map)) {
+                if (value == null) {
+                    return;
+                }
+                child = new HashMap<String, Object>();
+                node.put(segments[i], child);
+            }
+            node = (Map<String, Object>) child;
+        }
+
+        String last = segments[segments.length - 1];
+        if (value == null) {
+            node.remove(last);
+
+            // Remove empty parents, the database does not store empty nodes
+            for (int i = parents.size() - 1; i >= 0 && node.isEmpty(); i--) {
+                parents.get(i).remove(segments[i]);
+                node = parents.get(i);
+            }
+        } else {
+            node.put(last, value);
+        }
+    }
+
+    /**
+     * Creates a deep copy of the given value so no references are shared between the database
+     * and the clients
+     *
+     * @param value the value
+     * @return the copy
+     */
+    private static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new HashMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                copy.put(e.getKey().toString(), copy(e.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object o : (List<?>) value) {
+                copy.add(copy(o));
+            }
+            return copy;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Joins the two paths
+     *
+     * @param path  the parent path
+     * @param child the child path
+     * @return the joined path
+     */
+    private static String join(String path, String child) {
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
+
+    /**
+     * Splits the given path into its segments
+     *
+     * @param path the path
+     * @return the segments
+     */
+    private static String[] split(String path) {
+        String p = path;
+        while (p.startsWith("/")) {
+            p = p.substring(1);
+        }
+        return p.split("/+");
+    }
+
+    /**
+     * A listener which is informed about changes to a path
+     */
+    public interface ValueListener {
+
+        /**
+         * Called when the value at the listened path changed
+         *
+         * @param value the new value
+         * @param bytes the number of bytes transferred to the listener
+         */
+        void onDataChange(Object value, long bytes);
+
+    }
+
+    /**
+     * A pending notification of a {@link ValueListener}
+     */
+    private static class Notification {
+
+        /**
+         * The listener to notify
+         */
+        private final ValueListener mListener;
+
+        /**
+         * The value to deliver
+         */
+        private final Object mValue;
+
+        /**
+         * The size of the value
+         */
+        private final long mSize;
+
+        /**
+         * Creates a new instance
+         *
+         * @param listener the listener to notify
+         * @param value    the value to deliver
+         * @param size     the size of the value
+         */
+        private Notification(ValueListener listener, Object value, long size) {
+            mListener = listener;
+            mValue = value;
+            mSize = size;
+        }
+
+        /**
+         * Delivers the value to the listener
+         */
+        private void deliver() {
+            mListener.onDataChange(mValue, mSize);
+        }
+    }
+}
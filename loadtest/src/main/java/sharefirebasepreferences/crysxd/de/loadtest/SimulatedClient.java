@@ -0,0 +1,426 @@
+package sharefirebasepreferences.crysxd.de.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import sharefirebasepreferences.crysxd.de.lib.PreferencesSummary;
+import sharefirebasepreferences.crysxd.de.lib.StringSetCodec;
+
+/**
+ * A simulated device running {@code SharedFirebasePreferences}. The client keeps a local cache of
+ * the preferences and talks to the {@link LocalDatabase} the same way the library talks to
+ * Firebase, using the library's {@link StringSetCodec} and {@link PreferencesSummary}: edits push
+ * the changed keys with {@code updateChildren} together with their index entries and bucket
+ * tokens, string sets are pushed as element diffs once their remote state is known, pulls fetch
+ * the summary and only the changed buckets and {@code keepSynced} registers a value listener on the
+ * root.
+ */
+public class SimulatedClient implements LocalDatabase.ValueListener {
+
+    /**
+     * The database
+     */
+    private final LocalDatabase mDatabase;
+
+    /**
+     * The stats to record to
+     */
+    private final Stats mStats;
+
+    /**
+     * The path of the root of the preferences
+     */
+    private final String mRoot;
+
+    /**
+     * The configuration of the load test
+     */
+    private final LoadTest.Config mConfig;
+
+    /**
+     * The random used to generate the workload
+     */
+    private final Random mRandom;
+
+    /**
+     * The local cache
+     */
+    private final Map<String, Object> mCache = new HashMap<>();
+
+    /**
+     * The string sets as last synced with the database mapped by key
+     */
+    private final Map<String, Set<String>> mSyncedSets = new HashMap<>();
+
+    /**
+     * The bucket tokens seen by the last pull
+     */
+    private final PreferencesSummary mSummary = new PreferencesSummary();
+
+    /**
+     * Whether the client is currently kept in sync
+     */
+    private volatile boolean mSynced;
+
+    /**
+     * Creates a new instance
+     *
+     * @param database the {@link LocalDatabase}
+     * @param stats    the {@link Stats} to record to
+     * @param root     the path of the root of the preferences
+     * @param config   the {@link LoadTest.Config}
+     * @param seed     the seed for the workload
+     */
+    public SimulatedClient(LocalDatabase database, Stats stats, String root, LoadTest.Config config, long seed) {
+        mDatabase = database;
+        mStats = stats;
+        mRoot = root;
+        mConfig = config;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Fills the local cache with the initial values and pushes them. Nothing is recorded.
+     */
+    public void seed() {
+        Map<String, Object> values;
+        Map<String, Set<String>> pushed = new HashMap<>();
+        synchronized (this) {
+            for (int i = 0; i < mConfig.keys; i++) {
+                mCache.put(key(i), randomValue(i));
+            }
+            values = getPushValues(mCache.keySet(), pushed);
+        }
+        mDatabase.updateChildren(mRoot, values);
+        onPushCompleted(pushed);
+    }
+
+    /**
+     * Executes a random operation according to the configured workload mix. The database is never
+     * called while holding the lock of this client, so writes never wait for the delivery of
+     * events to this client.
+     */
+    public void step() {
+        int r;
+        synchronized (this) {
+            r = mRandom.nextInt(mConfig.editWeight + mConfig.pullWeight + mConfig.keepSyncedWeight);
+        }
+        if (r < mConfig.editWeight) {
+            edit();
+        } else if (r < mConfig.editWeight + mConfig.pullWeight) {
+            pull();
+        } else {
+            keepSynced(!mSynced);
+        }
+    }
+
+    /**
+     * Stops syncing if the client is kept in sync
+     */
+    public void stop() {
+        if (mSynced) {
+            keepSynced(false);
+        }
+    }
+
+    /**
+     * Returns the delay until the next operation in milliseconds, exponentially distributed
+     * around the configured think time
+     *
+     * @return the delay
+     */
+    public synchronized long nextDelay() {
+        return (long) (-Math.log(1 - mRandom.nextDouble()) * mConfig.thinkMillis);
+    }
+
+    /**
+     * Changes a random key and pushes it like the push scheduled by
+     * {@code SharedFirebasePreferences.Editor#apply()} or all keys like
+     * {@code SharedFirebasePreferences#push()}
+     */
+    private void edit() {
+        Map<String, Object> values;
+        Map<String, Set<String>> pushed = new HashMap<>();
+        synchronized (this) {
+            int i = mRandom.nextInt(mConfig.keys);
+            String key = key(i);
+            mCache.put(key, changeValue(i, mCache.get(key)));
+            values = getPushValues(mConfig.deltaPush ? Collections.singleton(key) : mCache.keySet(), pushed);
+        }
+
+        long start = System.nanoTime();
+        long bytes = mDatabase.updateChildren(mRoot, values);
+        mStats.record(Stats.Operation.EDIT, System.nanoTime() - start, bytes, 0);
+        onPushCompleted(pushed);
+    }
+
+    /**
+     * Builds the values to push for the given keys like {@code SharedFirebasePreferences#getPushValues}.
+     * Must be called while holding the lock.
+     *
+     * @param keys   the keys to push
+     * @param pushed the map to which the pushed sets are added
+     * @return the values to push
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getPushValues(Collection<String> keys, Map<String, Set<String>> pushed) {
+        Map<String, Object> values = new HashMap<>();
+        for (String k : keys) {
+            Object v = mCache.get(k);
+            if (v instanceof Set) {
+                Set<String> set = (Set<String>) v;
+                Set<String> synced = mSyncedSets.get(k);
+                if (synced != null) {
+                    StringSetCodec.diff(values, k, synced, set);
+                } else {
+                    values.put(k, StringSetCodec.encode(set));
+                }
+                if (StringSetCodec.isKeyEncodable(set)) {
+                    pushed.put(k, set);
+                }
+            } else {
+                values.put(k, v);
+            }
+        }
+
+        PreferencesSummary.addPushValues(values, keys);
+        return values;
+    }
+
+    /**
+     * Remembers the pushed sets as synced. The {@link LocalDatabase} applies updates synchronously,
+     * so a push is always completed and successful when this is called. Sets replaced by a pull
+     * in the meantime keep the synced state of the pull.
+     *
+     * @param pushed the pushed sets mapped by key
+     */
+    private synchronized void onPushCompleted(Map<String, Set<String>> pushed) {
+        for (Map.Entry<String, Set<String>> e : pushed.entrySet()) {
+            if (mCache.get(e.getKey()) == e.getValue()) {
+                mSyncedSets.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Fetches the summary and the changed buckets like {@code SharedFirebasePreferences#pull()}.
+     * Everything is fetched if more than half of the buckets changed.
+     */
+    private void pull() {
+        long start = System.nanoTime();
+        Object summary = mDatabase.get(mRoot + "/" + PreferencesSummary.SUMMARY_KEY);
+        long bytes = LocalDatabase.sizeOf(summary);
+
+        String[] remote = getTokens(summary);
+        List<Integer> changed = mSummary.getChangedBuckets(remote);
+        if (summary == null || changed.size() > PreferencesSummary.BUCKETS / 2) {
+            Object value = mDatabase.get(mRoot);
+            long latency = System.nanoTime() - start;
+            apply(value);
+            mStats.record(Stats.Operation.PULL, latency, 0, bytes + LocalDatabase.sizeOf(value));
+            return;
+        }
+
+        // Fetch the index of the changed buckets, then the values of the indexed keys
+        Map<String, Object> values = new HashMap<>();
+        for (Integer b : changed) {
+            Object index = mDatabase.get(mRoot + "/" + PreferencesSummary.INDEX_KEY + "/" + b);
+            bytes += LocalDatabase.sizeOf(index);
+            if (index instanceof Map) {
+                for (Object k : ((Map<?, ?>) index).keySet()) {
+                    Object value = mDatabase.get(mRoot + "/" + k);
+                    bytes += LocalDatabase.sizeOf(value);
+                    values.put(k.toString(), value);
+                }
+            }
+        }
+        long latency = System.nanoTime() - start;
+
+        applyBuckets(values, changed, remote);
+        mStats.record(Stats.Operation.PULL, latency, 0, bytes);
+    }
+
+    /**
+     * Starts or stops syncing like {@code SharedFirebasePreferences#keepSynced(boolean)}
+     *
+     * @param b true to start syncing
+     */
+    private void keepSynced(boolean b) {
+        long start = System.nanoTime();
+        if (b) {
+            mSynced = true;
+            mDatabase.addValueListener(mRoot, this);
+        } else {
+            mSynced = false;
+            mDatabase.removeValueListener(mRoot, this);
+        }
+        mStats.record(Stats.Operation.KEEP_SYNCED, System.nanoTime() - start, 0, 0);
+    }
+
+    @Override
+    public void onDataChange(Object value, long bytes) {
+        apply(value);
+        mStats.record(Stats.Operation.SYNC_EVENT, -1, 0, bytes);
+    }
+
+    /**
+     * Replaces the local cache with the given value of the root like the {@code PullTask}
+     *
+     * @param value the value of the root
+     */
+    private synchronized void apply(Object value) {
+        mCache.clear();
+        mSyncedSets.clear();
+        if (!(value instanceof Map)) {
+            return;
+        }
+
+        Map<?, ?> root = (Map<?, ?>) value;
+        for (Map.Entry<?, ?> e : root.entrySet()) {
+            String k = e.getKey().toString();
+            if (!PreferencesSummary.isReservedKey(k)) {
+                putValue(k, e.getValue());
+            }
+        }
+
+        String[] tokens = getTokens(root.get(PreferencesSummary.SUMMARY_KEY));
+        for (int i = 0; i < tokens.length; i++) {
+            mSummary.setSynced(i, tokens[i]);
+        }
+    }
+
+    /**
+     * Applies the fetched values of the changed buckets like the {@code PullTask}. A null value
+     * removes the key.
+     *
+     * @param values  the fetched values
+     * @param buckets the fetched buckets
+     * @param tokens  the remote tokens mapped by bucket
+     */
+    private synchronized void applyBuckets(Map<String, Object> values, List<Integer> buckets, String[] tokens) {
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            if (e.getValue() == null) {
+                mCache.remove(e.getKey());
+                mSyncedSets.remove(e.getKey());
+            } else {
+                putValue(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Integer b : buckets) {
+            mSummary.setSynced(b, tokens[b]);
+        }
+    }
+
+    /**
+     * Puts the given fetched value into the local cache, string sets are decoded and remembered
+     * as synced. Must be called while holding the lock.
+     *
+     * @param k the key
+     * @param v the fetched value
+     */
+    private void putValue(String k, Object v) {
+        if (v instanceof Map || v instanceof List) {
+            Set<String> set = StringSetCodec.decode(v);
+            mCache.put(k, set);
+            if (v instanceof Map) {
+                mSyncedSets.put(k, set);
+            } else {
+                mSyncedSets.remove(k);
+            }
+        } else {
+            mCache.put(k, v);
+            mSyncedSets.remove(k);
+        }
+    }
+
+    /**
+     * Returns the tokens of the given summary
+     *
+     * @param summary the fetched summary
+     * @return the tokens mapped by bucket, null for buckets never pushed
+     */
+    private static String[] getTokens(Object summary) {
+        String[] tokens = new String[PreferencesSummary.BUCKETS];
+        if (summary instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) summary;
+            for (int i = 0; i < PreferencesSummary.BUCKETS; i++) {
+                Object token = map.get(String.valueOf(i));
+                tokens[i] = token == null ? null : token.toString();
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the key with the given index
+     *
+     * @param i the index
+     * @return the key
+     */
+    private static String key(int i) {
+        return "key_" + i;
+    }
+
+    /**
+     * Returns a changed value for the key with the given index. One element of a string set is
+     * replaced, all other values are replaced completely.
+     *
+     * @param i       the index of the key
+     * @param current the current value or null
+     * @return the changed value
+     */
+    @SuppressWarnings("unchecked")
+    private Object changeValue(int i, Object current) {
+        if (!(current instanceof Set) || ((Set<?>) current).isEmpty()) {
+            return randomValue(i);
+        }
+
+        // The cache is replaced by pulls, so never modify the current set in place
+        List<String> elements = new ArrayList<>((Set<String>) current);
+        Set<String> set = new HashSet<>(elements);
+        set.remove(elements.get(mRandom.nextInt(elements.size())));
+        set.add(randomElement());
+        return set;
+    }
+
+    /**
+     * Creates a random value for the key with the given index. The type of a key never changes.
+     *
+     * @param i the index of the key
+     * @return the value
+     */
+    private Object randomValue(int i) {
+        switch (i % 4) {
+            case 0:
+                return mRandom.nextBoolean();
+            case 1:
+                return mRandom.nextLong();
+            case 2:
+                return String.format(Locale.ENGLISH, "value_%08x", mRandom.nextInt());
+            default:
+                Set<String> set = new HashSet<>();
+                for (int j = 0; j < mConfig.setSize; j++) {
+                    set.add(randomElement());
+                }
+                return set;
+        }
+    }
+
+    /**
+     * Creates a random element of a string set
+     *
+     * @return the element
+     */
+    private String randomElement() {
+        return String.format(Locale.ENGLISH, "element_%08x", mRandom.nextInt());
+    }
+}
@@ -0,0 +1,154 @@
+package sharefirebasepreferences.crysxd.de.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects latencies and transferred bytes of all operations executed during a load test
+ */
+public class Stats {
+
+    /**
+     * The recorders for all operations
+     */
+    private final Map<Operation, Recorder> mRecorders = new EnumMap<>(Operation.class);
+
+    /**
+     * Creates a new instance
+     */
+    public Stats() {
+        for (Operation o : Operation.values()) {
+            mRecorders.put(o, new Recorder());
+        }
+    }
+
+    /**
+     * Records a executed operation
+     *
+     * @param operation   the {@link Operation}
+     * @param latencyNano the latency in nanoseconds or a negative value if the latency is not
+     *                    known (e.g. for events pushed by the database)
+     * @param bytesUp     the bytes sent to the database
+     * @param bytesDown   the bytes received from the database
+     */
+    public void record(Operation operation, long latencyNano, long bytesUp, long bytesDown) {
+        mRecorders.get(operation).record(latencyNano, bytesUp, bytesDown);
+    }
+
+    /**
+     * Prints a report of all recorded operations
+     *
+     * @param out           the {@link PrintStream} to print to
+     * @param durationNanos the duration of the load test in nanoseconds
+     */
+    public void print(PrintStream out, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        long total = 0;
+
+        out.println(String.format(Locale.ENGLISH, "%-12s %10s %10s %9s %9s %9s %9s %9s %11s %11s",
+                "operation", "count", "ops/s", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms", "up B/op", "down B/op"));
+        for (Operation o : Operation.values()) {
+            Recorder r = mRecorders.get(o);
+            synchronized (r) {
+                if (r.mCount == 0) {
+                    continue;
+                }
+
+                long[] latencies = Arrays.copyOf(r.mLatencies, r.mLatencyCount);
+                Arrays.sort(latencies);
+                total += r.mCount;
+
+                out.println(String.format(Locale.ENGLISH, "%-12s %10d %10.1f %9s %9s %9s %9s %9s %11.1f %11.1f",
+                        o.name().toLowerCase(Locale.ENGLISH),
+                        r.mCount,
+                        r.mCount / seconds,
+                        percentile(latencies, 0.5),
+                        percentile(latencies, 0.95),
+                        percentile(latencies, 0.99),
+                        percentile(latencies, 0.999),
+                        percentile(latencies, 1),
+                        r.mBytesUp / (double) r.mCount,
+                        r.mBytesDown / (double) r.mCount));
+            }
+        }
+
+        out.println(String.format(Locale.ENGLISH, "total: %d operations in %.1fs (%.1f ops/s)", total, seconds, total / seconds));
+    }
+
+    /**
+     * Returns the given percentile of the sorted latencies formatted in milliseconds
+     *
+     * @param sorted     the sorted latencies in nanoseconds
+     * @param percentile the percentile between 0 and 1
+     * @return the formatted percentile
+     */
+    private static String percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return String.format(Locale.ENGLISH, "%.3f", sorted[Math.max(0, index)] / 1e6);
+    }
+
+    /**
+     * The operations executed by the simulated clients
+     */
+    public enum Operation {
+        EDIT, PULL, KEEP_SYNCED, SYNC_EVENT
+    }
+
+    /**
+     * Records the values of a single {@link Operation}
+     */
+    private static class Recorder {
+
+        /**
+         * The recorded latencies in nanoseconds
+         */
+        private long[] mLatencies = new long[1024];
+
+        /**
+         * The number of recorded latencies
+         */
+        private int mLatencyCount;
+
+        /**
+         * The number of recorded operations
+         */
+        private long mCount;
+
+        /**
+         * The total bytes sent
+         */
+        private long mBytesUp;
+
+        /**
+         * The total bytes received
+         */
+        private long mBytesDown;
+
+        /**
+         * Records a executed operation
+         *
+         * @param latencyNano the latency or a negative value if unknown
+         * @param bytesUp     the bytes sent
+         * @param bytesDown   the bytes received
+         */
+        private synchronized void record(long latencyNano, long bytesUp, long bytesDown) {
+            mCount++;
+            mBytesUp += bytesUp;
+            mBytesDown += bytesDown;
+
+            if (latencyNano >= 0) {
+                if (mLatencyCount == mLatencies.length) {
+                    mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+                }
+                mLatencies[mLatencyCount++] = latencyNano;
+            }
+        }
+    }
+}